@@ -0,0 +1,47 @@
+package com.nixus.raop.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of PCM audio for the Player. Blocks of audio are returned as
+ * buffers that may be views straight onto the source's own storage, so
+ * they're only valid until the next call.
+ */
+interface AudioSource {
+
+    float getSampleRate();
+
+    int getBitsPerChannel();
+
+    int getChannels();
+
+    boolean isSigned();
+
+    boolean isBigEndian();
+
+    /**
+     * Return the next block of audio, of at most max bytes and a whole
+     * number of frames, between the position and limit of the buffer
+     * returned. Return null at the end of the source.
+     */
+    ByteBuffer read(int max) throws IOException;
+
+    /**
+     * Move to the specified sample, or as close to it as possible
+     */
+    void seek(long sample) throws IOException;
+
+    /**
+     * Return the number of the next sample to be read
+     */
+    long getPosition();
+
+    /**
+     * Return the length of the source in samples, or -1 if it isn't known
+     */
+    long getLength();
+
+    void close() throws IOException;
+
+}
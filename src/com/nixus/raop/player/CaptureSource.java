@@ -0,0 +1,266 @@
+package com.nixus.raop.player;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import com.nixus.raop.core.ServiceContext;
+
+/**
+ * A live AudioSource reading the mixer output the patched AudioFlinger
+ * sends to 127.0.0.1:4999 - 16 bit stereo little-endian PCM, no header.
+ * This replaces one raop_play process per speaker: the one stream goes
+ * to every speaker of the player.
+ *
+ * A thread of its own accepts the connection and reads it with NIO
+ * straight into a direct ring buffer, and the player reads slices of the
+ * ring. When the ring is full we stop reading, so the mixer is held back
+ * by the socket rather than anything being dropped. The mixer writes
+ * whatever it has, so reads can end mid-frame: only whole frames are
+ * returned, and if the mixer reconnects (it does whenever the socket
+ * fails) any partial frame from the old connection is dropped so the
+ * channels stay aligned.
+ */
+class CaptureSource implements AudioSource, Runnable {
+
+    static final int DEFAULTPORT = 4999, DEFAULTRATE = 44100;
+    private static final int FRAMESIZE = 4;
+    private static final int CAPACITY = 1<<18;      // ~1.5 secs
+    private static final long READWAIT = 100;       // ms
+
+    private final ServiceContext context;
+    private final float sampleRate;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ByteBuffer ring, writeview, readview;
+    private final int mask;
+    private final Thread thread;
+    private volatile long head, tail;       // written by the capture thread and the reader
+    private volatile boolean closed, stalled;
+    private SocketChannel client;           // capture thread only
+    private SelectionKey clientkey;         // capture thread only
+    private long connectedat;               // capture thread only - head when the client connected
+    private int returned;                   // reader only - bytes returned by the last read
+    private long position;                  // reader only
+
+    CaptureSource(ServiceContext context, int port, float sampleRate) throws IOException {
+        this.context = context;
+        this.sampleRate = sampleRate;
+        ring = ByteBuffer.allocateDirect(CAPACITY);
+        writeview = ring.duplicate();
+        readview = ring.duplicate();
+        mask = CAPACITY - 1;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this, "qTunes-capture");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY - 1);
+        thread.start();
+        context.debug("Listening for capture on port "+port);
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerChannel() {
+        return 16;
+    }
+
+    public int getChannels() {
+        return 2;
+    }
+
+    public boolean isSigned() {
+        return true;
+    }
+
+    public boolean isBigEndian() {
+        return false;
+    }
+
+    /**
+     * Return the whole frames captured, up to max bytes, waiting a little
+     * while for some if there are none - if there are still none, the
+     * buffer returned is empty. The slice returned is released on the next
+     * call. Returns null once closed.
+     */
+    public ByteBuffer read(int max) throws IOException {
+        release();
+        long avail;
+        synchronized(this) {
+            if (!closed && (head - tail) < FRAMESIZE) {
+                try {
+                    wait(READWAIT);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            avail = (head - tail) & ~(FRAMESIZE - 1);
+        }
+        if (closed) {
+            return null;
+        }
+        int t = (int)(tail & mask);
+        int len = (int)Math.min(Math.min(avail, max - max % FRAMESIZE), ring.capacity() - t);
+        readview.clear();
+        readview.limit(t + len);
+        readview.position(t);
+        returned = len;
+        position += len;
+        return readview;
+    }
+
+    private void release() {
+        if (returned > 0) {
+            tail += returned;
+            returned = 0;
+            if (stalled) {
+                stalled = false;
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A live source can't seek
+     */
+    public void seek(long sample) {
+    }
+
+    public long getPosition() {
+        return position / FRAMESIZE;
+    }
+
+    public long getLength() {
+        return -1;
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        synchronized(this) {
+            notifyAll();
+        }
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Capture thread
+    //-----------------------------------------------------------------------------------
+
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator();i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        fill();
+                    }
+                }
+                if (clientkey != null && clientkey.isValid() && clientkey.interestOps() == 0 && head - tail < ring.capacity()) {
+                    clientkey.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                context.warn("Capture failed", e);
+            }
+        } finally {
+            closed = true;
+            disconnect();
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) { }
+            synchronized(this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Accept a connection from the mixer, which replaces any we have
+     */
+    private void accept() throws IOException {
+        SocketChannel c = server.accept();
+        if (c == null) {
+            return;
+        }
+        disconnect();
+        c.configureBlocking(false);
+        client = c;
+        clientkey = c.register(selector, SelectionKey.OP_READ);
+        context.debug("Capture connected");
+    }
+
+    private void disconnect() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) { }
+            client = null;
+            clientkey = null;
+            // Drop any partial frame the connection left. The reader only
+            // takes whole frames, so it won't have seen it.
+            long partial = (head - connectedat) % FRAMESIZE;
+            if (partial != 0) {
+                head -= partial;
+            }
+            connectedat = head;
+        }
+    }
+
+    /**
+     * Read what we can into the ring, and stop reading while it's full
+     */
+    private void fill() {
+        long free = ring.capacity() - (head - tail);
+        if (free == 0) {
+            clientkey.interestOps(0);
+            stalled = true;
+            return;
+        }
+        int h = (int)(head & mask);
+        writeview.clear();
+        writeview.limit((int)Math.min(ring.capacity(), h + free));
+        writeview.position(h);
+        int n;
+        try {
+            n = client.read(writeview);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            context.debug("Capture disconnected");
+            disconnect();
+        } else if (n > 0) {
+            head += n;
+            synchronized(this) {
+                notifyAll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+package com.nixus.raop.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Converts another AudioSource to the 44.1kHz 16 bit signed stereo the
+ * speakers take, as it's read. Any number of channels is taken as mono
+ * or the first two as left and right; 8, 16, 24 and 32 bit samples of
+ * either signedness and endianness are read; and the sample rate is
+ * converted by a polyphase windowed-sinc filter.
+ *
+ * The resampler works on the rational ratio up/down between the rates.
+ * The filter is designed once, as a Kaiser-windowed sinc split into one
+ * set of taps per phase, so each output frame is a single dot product.
+ * If the ratio needs more than {@link #MAXPHASES} phases the nearest is
+ * used. Nothing is allocated once the first block has been read.
+ */
+class FormatConverter implements AudioSource {
+
+    /**
+     * Trade quality for speed
+     */
+    enum Quality {
+        /** 8 taps per phase - for slow phones */
+        FAST(8, 0.80, 5),
+        /** 16 taps per phase */
+        MEDIUM(16, 0.90, 7),
+        /** 32 taps per phase - flat to about 20kHz */
+        BEST(32, 0.95, 9);
+
+        final int taps;
+        final double rolloff, beta;
+
+        Quality(int taps, double rolloff, double beta) {
+            this.taps = taps;
+            this.rolloff = rolloff;
+            this.beta = beta;
+        }
+    }
+
+    static final int RATE = 44100;
+    private static final int MAXPHASES = 1024;
+
+    private final AudioSource source;
+    private final int channels, bytes, framesize, inrate;
+    private final boolean signed, bigEndian;
+    private final float scale;
+    private final int up, down, phases, taps;
+    private final float[] filter;       // phases * taps
+    private float[] left, right;        // history then the block being converted
+    private int count, index, phase;    // frames of history, resampler position
+    private ByteBuffer out;
+    private long position;
+
+    /**
+     * Return the source if it's already in the format the speakers take,
+     * or a converter reading it if not
+     */
+    static AudioSource wrap(AudioSource source, Quality quality) throws IOException {
+        if (source.getSampleRate() == RATE && source.getBitsPerChannel() == 16 && source.getChannels() == 2 && source.isSigned() && !source.isBigEndian()) {
+            return source;
+        }
+        return new FormatConverter(source, quality);
+    }
+
+    FormatConverter(AudioSource source, Quality quality) throws IOException {
+        this.source = source;
+        this.channels = source.getChannels();
+        this.bytes = source.getBitsPerChannel() / 8;
+        this.signed = source.isSigned();
+        this.bigEndian = source.isBigEndian();
+        this.inrate = Math.round(source.getSampleRate());
+        if (channels < 1 || bytes < 1 || bytes > 4 || bytes * 8 != source.getBitsPerChannel() || inrate <= 0) {
+            throw new IOException("Unsupported format: "+source.getSampleRate()+"Hz "+source.getBitsPerChannel()+" bit "+channels+" channels");
+        }
+        this.framesize = bytes * channels;
+        this.scale = 1f / (1l << (bytes * 8 - 1));
+
+        int gcd = gcd(inrate, RATE);
+        up = RATE / gcd;
+        down = inrate / gcd;
+        if (up == down) {
+            phases = taps = 1;
+            filter = null;
+        } else {
+            phases = Math.min(up, MAXPHASES);
+            taps = quality.taps;
+            filter = design(phases, taps, quality.rolloff * 0.5 * Math.min(1.0, (double)up / down), quality.beta);
+        }
+        reset();
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Design the lowpass prototype at phases times the input rate, with
+     * the specified cutoff relative to the input rate, and split it into
+     * phases - each normalized to unity gain at DC.
+     */
+    private static float[] design(int phases, int taps, double cutoff, double beta) {
+        int n = phases * taps;
+        double fc = cutoff / phases;
+        double centre = (n - 1) / 2.0;
+        double i0beta = bessel(beta);
+        float[] filter = new float[n];
+        for (int p=0;p<phases;p++) {
+            double sum = 0;
+            double[] h = new double[taps];
+            for (int k=0;k<taps;k++) {
+                double t = k * phases + p - centre;
+                double x = 2 * t / (n - 1);
+                double window = bessel(beta * Math.sqrt(Math.max(0, 1 - x * x))) / i0beta;
+                double sinc = t == 0 ? 1 : Math.sin(2 * Math.PI * fc * t) / (2 * Math.PI * fc * t);
+                h[k] = sinc * window;
+                sum += h[k];
+            }
+            for (int k=0;k<taps;k++) {
+                filter[p * taps + k] = (float)(h[k] / sum);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * The zeroth order modified Bessel function of the first kind
+     */
+    private static double bessel(double x) {
+        double sum = 1, term = 1;
+        for (int k=1;k<50 && term > sum * 1e-12;k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private void reset() {
+        count = index = taps - 1;
+        phase = 0;
+        if (left != null) {
+            for (int i=0;i<count;i++) {
+                left[i] = right[i] = 0;
+            }
+        }
+    }
+
+    public float getSampleRate() {
+        return RATE;
+    }
+
+    public int getBitsPerChannel() {
+        return 16;
+    }
+
+    public int getChannels() {
+        return 2;
+    }
+
+    public boolean isSigned() {
+        return true;
+    }
+
+    public boolean isBigEndian() {
+        return false;
+    }
+
+    /**
+     * Read and convert the next block from the source. The buffer returned
+     * is reused by the next call.
+     */
+    public ByteBuffer read(int max) throws IOException {
+        int outframes = Math.max(3, max / 4);
+        int inframes = Math.max(1, (int)((long)(outframes - 2) * down / up));
+        if (out == null || out.capacity() < outframes * 4) {
+            out = ByteBuffer.allocateDirect(outframes * 4).order(ByteOrder.LITTLE_ENDIAN);
+            float[] l = new float[taps - 1 + inframes], r = new float[l.length];
+            if (left != null) {
+                System.arraycopy(left, 0, l, 0, count);
+                System.arraycopy(right, 0, r, 0, count);
+            }
+            left = l;
+            right = r;
+        }
+        inframes = Math.min(inframes, left.length - count);
+        ByteBuffer in = source.read(inframes * framesize);
+        if (in == null) {
+            return null;
+        }
+        int n = in.remaining() / framesize;
+        decode(in, n);
+        out.clear();
+        if (filter == null) {
+            for (int i=0;i<n;i++) {
+                out.putShort(toShort(left[i]));
+                out.putShort(toShort(right[i]));
+            }
+        } else {
+            resample(count + n);
+        }
+        out.flip();
+        position += out.remaining() / 4;
+        return out;
+    }
+
+    /**
+     * Decode n frames from the buffer to floats, after the history
+     */
+    private void decode(ByteBuffer in, int n) {
+        final int shift = 32 - bytes * 8;
+        int pos = in.position();
+        int off = filter == null ? 0 : count;
+        for (int i=0;i<n;i++) {
+            float l = sample(in, pos, shift);
+            left[off + i] = l;
+            right[off + i] = channels == 1 ? l : sample(in, pos + bytes, shift);
+            pos += framesize;
+        }
+        in.position(pos);
+    }
+
+    private float sample(ByteBuffer in, int pos, int shift) {
+        int v = 0;
+        if (bigEndian) {
+            for (int j=0;j<bytes;j++) {
+                v = (v << 8) | (in.get(pos + j) & 0xFF);
+            }
+        } else {
+            for (int j=bytes-1;j>=0;j--) {
+                v = (v << 8) | (in.get(pos + j) & 0xFF);
+            }
+        }
+        v <<= shift;
+        if (!signed) {
+            v ^= 0x80000000;
+        }
+        return (v >> shift) * scale;
+    }
+
+    /**
+     * Produce every output frame we can from the total frames in left and
+     * right, then keep the last taps-1 of them as history for the next block
+     */
+    private void resample(int total) {
+        final float[] filter = this.filter, left = this.left, right = this.right;
+        final int taps = this.taps;
+        while (index < total) {
+            int base = (phases == up ? phase : (int)((long)phase * phases / up)) * taps;
+            float l = 0, r = 0;
+            for (int k=0;k<taps;k++) {
+                float h = filter[base + k];
+                l += h * left[index - k];
+                r += h * right[index - k];
+            }
+            out.putShort(toShort(l));
+            out.putShort(toShort(r));
+            phase += down;
+            index += phase / up;
+            phase %= up;
+        }
+        int keep = taps - 1;
+        System.arraycopy(left, total - keep, left, 0, keep);
+        System.arraycopy(right, total - keep, right, 0, keep);
+        index -= total - keep;
+        count = keep;
+    }
+
+    private static short toShort(float x) {
+        int v = Math.round(x * 32768f);
+        return (short)(v > 32767 ? 32767 : v < -32768 ? -32768 : v);
+    }
+
+    public void seek(long sample) throws IOException {
+        source.seek(sample * down / up);
+        position = sample;
+        reset();
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getLength() {
+        long length = source.getLength();
+        return length < 0 ? -1 : length * up / down;
+    }
+
+    public void close() throws IOException {
+        source.close();
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.nixus.raop.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An AudioSource reading a WAV file through memory mapped windows of it.
+ * The RIFF chunks are parsed to find the format and the data, and blocks
+ * are returned as slices of the mapping so nothing is copied on the way
+ * to the MultiLine queue. When a window is half read the next is mapped
+ * and loaded in the background, so the pages are resident by the time we
+ * reach them. A file that isn't RIFF is played as raw 44.1kHz 16 bit
+ * stereo little-endian PCM, as it always was.
+ *
+ * Windows are used rather than mapping the whole file as address space
+ * is short on a phone.
+ */
+class MappedWavSource implements AudioSource {
+
+    private static final int WINDOW = 1<<20;    // bytes
+    private static final int RIFF = 0x46464952, WAVE = 0x45564157, FMT = 0x20746d66, DATA = 0x61746164;
+    private static final int PCM = 1, EXTENSIBLE = 0xFFFE;
+    private static ExecutorService readahead;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private float sampleRate = 44100;
+    private int bitsPerChannel = 16, channels = 2, blockalign = 4;
+    private boolean signed = true;
+    private long dataoffset, datalength, windowsize;
+    private long position;                      // bytes from the start of the data
+    private MappedByteBuffer window, next;
+    private long windowindex = -1;
+    private ByteBuffer view;
+
+    MappedWavSource(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        try {
+            parse();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        windowsize = WINDOW / blockalign * blockalign;
+    }
+
+    private void parse() throws IOException {
+        long length = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        if (read(buf, 0, 12) < 12 || buf.getInt(0) != RIFF || buf.getInt(8) != WAVE) {
+            dataoffset = 0;
+            datalength = length - length % blockalign;
+            return;
+        }
+        boolean fmt = false;
+        long offset = 12;
+        while (offset + 8 <= length) {
+            read(buf, offset, 8);
+            int id = buf.getInt(0);
+            long size = buf.getInt(4) & 0xFFFFFFFFl;
+            if (id == FMT) {
+                if (size < 16 || read(buf, offset + 8, 16) < 16) {
+                    throw new IOException("Bad fmt chunk");
+                }
+                int format = buf.getShort(0) & 0xFFFF;
+                if (format != PCM && format != EXTENSIBLE) {
+                    throw new IOException("Unsupported WAV format "+format);
+                }
+                channels = buf.getShort(2) & 0xFFFF;
+                sampleRate = buf.getInt(4);
+                blockalign = buf.getShort(12) & 0xFFFF;
+                bitsPerChannel = buf.getShort(14) & 0xFFFF;
+                signed = bitsPerChannel > 8;
+                if (channels == 0 || blockalign == 0) {
+                    throw new IOException("Bad fmt chunk");
+                }
+                fmt = true;
+            } else if (id == DATA) {
+                if (!fmt) {
+                    throw new IOException("No fmt chunk before data");
+                }
+                dataoffset = offset + 8;
+                datalength = Math.min(size, length - dataoffset);
+                datalength -= datalength % blockalign;
+                return;
+            }
+            offset += 8 + size + (size & 1);
+        }
+        throw new IOException("No data chunk");
+    }
+
+    private int read(ByteBuffer buf, long offset, int len) throws IOException {
+        buf.clear();
+        buf.limit(len);
+        while (buf.hasRemaining() && channel.read(buf, offset + buf.position()) > 0);
+        return buf.position();
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerChannel() {
+        return bitsPerChannel;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public boolean isBigEndian() {
+        return false;
+    }
+
+    public ByteBuffer read(int max) throws IOException {
+        if (position >= datalength) {
+            return null;
+        }
+        long index = position / windowsize;
+        if (index != windowindex) {
+            map(index);
+        }
+        int offset = (int)(position - index * windowsize);
+        int len = (int)Math.min(window.capacity() - offset, Math.min(max, datalength - position));
+        len -= len % blockalign;
+        if (len == 0) {
+            len = blockalign;   // max is less than a frame
+        }
+        if (next == null && offset + len > window.capacity() / 2 && (index + 1) * windowsize < datalength) {
+            next = mapWindow(index + 1);
+            final MappedByteBuffer load = next;
+            getReadahead().execute(new Runnable() {
+                public void run() {
+                    load.load();
+                }
+            });
+        }
+        view.clear();
+        view.limit(offset + len);
+        view.position(offset);
+        position += len;
+        return view;
+    }
+
+    /**
+     * Make the window with the specified index current, using the
+     * one mapped ahead if it's the right one
+     */
+    private void map(long index) throws IOException {
+        if (next != null && index == windowindex + 1) {
+            window = next;
+        } else {
+            window = mapWindow(index);
+        }
+        next = null;
+        windowindex = index;
+        view = window.duplicate();
+    }
+
+    private MappedByteBuffer mapWindow(long index) throws IOException {
+        long start = index * windowsize;
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataoffset + start, Math.min(windowsize, datalength - start));
+    }
+
+    private static synchronized ExecutorService getReadahead() {
+        if (readahead == null) {
+            readahead = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "qTunes-readahead");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return readahead;
+    }
+
+    /**
+     * Seeking only moves the position - the window is mapped on the next read
+     */
+    public void seek(long sample) {
+        position = Math.max(0, Math.min(sample * blockalign, datalength));
+    }
+
+    public long getPosition() {
+        return position / blockalign;
+    }
+
+    public long getLength() {
+        return datalength / blockalign;
+    }
+
+    public void close() throws IOException {
+        window = next = null;
+        view = null;
+        file.close();
+    }
+
+}
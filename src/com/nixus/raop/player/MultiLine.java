@@ -1,11 +1,22 @@
 package com.nixus.raop.player;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.nixus.raop.speaker.Speaker;
 
@@ -19,29 +30,167 @@ import com.nixus.raop.speaker.Speaker;
  * Other methods are called from other threads. If they need to interact they must
  * do so carefully and synchronize on this(for mods involving no change to bitrate)
  * or tracklock(for mods involving bitrate)
+ *
+ * Data written is pushed on to the speakers by a thread of our own, the
+ * {@link Pusher}, which holds pushlock while it does so.
  */
 class MultiLine {
     
 //    org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger("multiline");
+    /**
+     * A speaker with a delay of d bytes is fed from max-d bytes behind the
+     * one with the largest delay, max, so both are heard together. tail is
+     * where the one with the largest delay has got to, so this speaker is
+     * fed from tail-offset, and tail-max is what's being heard.
+     *
+     * The states are replaced whenever the delays are worked out again,
+     * and the pusher carries each one on from the one it replaced.
+     */
     private static class SpeakerState {
-        long tail = Long.MIN_VALUE;
-        int bytedelay;
+        long tail = Long.MIN_VALUE;     // pusher only
+        int bytedelay, offset;          // offset is max-bytedelay
+        SpeakerState previous;          // pusher only
+
+        SpeakerState(SpeakerState previous) {
+            this.previous = previous;
+        }
     }
 
+    /**
+     * Opens one speaker on the opener pool. If the caller gives up waiting
+     * the task is abandoned, and the speaker is closed when it does open.
+     */
+    private class OpenTask implements Callable<Boolean> {
+        final Speaker speaker;
+        private volatile long started;
+        private boolean done, opened, abandoned;
+
+        OpenTask(Speaker speaker) {
+            this.speaker = speaker;
+        }
+
+        public Boolean call() {
+            started = System.currentTimeMillis();
+            boolean ok = openSpeaker(speaker);
+            synchronized(this) {
+                done = true;
+                opened = ok;
+                if (!abandoned) {
+                    return ok;
+                }
+            }
+            speaker.close();
+            return false;
+        }
+
+        boolean isTimedOut() {
+            long started = this.started;
+            return started != 0 && System.currentTimeMillis() - started > OPENTIMEOUT;
+        }
+
+        void abandon() {
+            synchronized(this) {
+                abandoned = true;
+                if (!done || !opened) {
+                    return;
+                }
+            }
+            speaker.close();
+        }
+    }
+
+    private static final int MAXOPENING = 4;            // Speakers opened at once
+    private static final int OPENTIMEOUT = 15000;       // ms
+    private static ExecutorService opener;
+    private static final int DEFAULTQUEUESIZE = 1<<19;  // ~3 secs
+    private static final int MINQUEUESIZE = 1<<16, MAXQUEUESIZE = 1<<24;
+    private static final long FULLWAIT = 10;            // ms
+    private static final byte[] SILENCE = new byte[4096];
+
     private Object tracklock = new Object();    // Just for synchronizing on
     private volatile int volume, msdelay;
     private volatile float trackgain;
     private PlayerImpl player;
-    private byte[] queue = new byte[704000];    // ~4 secs
+    private VolumeDispatcher volumedispatcher;
+    private ByteBuffer queue, pushview;         // direct, power of two - see open()
+    private int mask;
     private volatile long head, tail;
-
-    private Map<Speaker,SpeakerState> speakers = new ConcurrentHashMap<Speaker,SpeakerState>();
+    private final Object pushlock = new Object();
+    private byte[] pushbuf = new byte[0];       // pusher only
+    private Pusher pusher;
+    private long pushedhead;                    // guarded by this
+    private boolean pushing;                    // guarded by this
+    private long heard = Long.MIN_VALUE;        // guarded by pushlock
+    private volatile boolean paused, flushing;
+
+    private volatile Map<Speaker,SpeakerState> speakers = new ConcurrentHashMap<Speaker,SpeakerState>();
     private float sampleRate;
-    private int bitsPerChannel, channels, bytespersecond, maxbytedelay;
+    private int bitsPerChannel, channels, bytespersecond;
     private boolean signed, bigEndian;
 
     MultiLine(PlayerImpl player) {
         this.player = player;
+        this.volumedispatcher = new VolumeDispatcher("qTunes-volume");
+    }
+
+    /**
+     * The encode stage of the pipeline. The player thread only copies audio
+     * into the queue; this thread pushes it from there to the speakers,
+     * which pack, encrypt and queue each packet for their paced sender. The
+     * queue absorbs a slow read on one side and a busy encoder on the other,
+     * and when it's full the player thread waits.
+     */
+    private class Pusher extends Thread {
+        private boolean cancelled;      // guarded by MultiLine.this
+
+        Pusher(String name) {
+            super(name);
+            setDaemon(true);
+            setPriority(Thread.NORM_PRIORITY + 1);
+        }
+
+        public void run() {
+            while (true) {
+                synchronized(MultiLine.this) {
+                    while (!cancelled && (pushedhead == head || paused)) {
+                        try {
+                            MultiLine.this.wait();
+                        } catch (InterruptedException e) { }
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    pushedhead = head;
+                    pushing = true;
+                }
+                try {
+                    synchronized(pushlock) {
+                        push();
+                    }
+                } catch (RuntimeException e) {
+                    player.getContext().warn("Push to speakers failed", e);
+                } finally {
+                    synchronized(MultiLine.this) {
+                        pushing = false;
+                        MultiLine.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the player is stopped for good
+     */
+    void dispose() {
+        volumedispatcher.stop();
+        synchronized(this) {
+            if (pusher != null) {
+                pusher.cancelled = true;
+                pusher = null;
+                notifyAll();
+            }
+        }
     }
 
     // -------------------------------------------------------------------------------------
@@ -57,41 +206,29 @@ class MultiLine {
         Collection<Speaker> rem = new HashSet<Speaker>(speakers.keySet());
         rem.removeAll(newspeakers);
 
-        Map<Speaker,SpeakerState> tempspeakers = new ConcurrentHashMap<Speaker,SpeakerState>(speakers);
+        Map<Speaker,SpeakerState> tempspeakers = new HashMap<Speaker,SpeakerState>(speakers);
         for (Iterator<Speaker> i = add.iterator();i.hasNext();) {
             Speaker speaker = i.next();
-            SpeakerState state = new SpeakerState();
-            tempspeakers.put(speaker, state);
+            tempspeakers.put(speaker, new SpeakerState(null));
         }
         for (Iterator<Speaker> i = rem.iterator();i.hasNext();) {
             Speaker speaker = i.next();
             tempspeakers.remove(speaker);
         }
 
-        int tempmaxbytedelay = 0;
-        for (Iterator<Map.Entry<Speaker,SpeakerState>> i = tempspeakers.entrySet().iterator();i.hasNext();) {
-            Map.Entry<Speaker,SpeakerState> e = i.next();
-            Speaker speaker = e.getKey();
-            SpeakerState state = e.getValue();
-            tempmaxbytedelay = Math.max(maxbytedelay, state.bytedelay);
-        }
-
         synchronized(tracklock) {
             if (isOpen()) {
-                for (Iterator<Speaker> i = add.iterator();i.hasNext();) {
-                    Speaker speaker = i.next();
-                    if (!openSpeaker(speaker, tempspeakers.get(speaker))) {
-                        tempspeakers.remove(speaker);
-                    }
-                }
+                tempspeakers.keySet().removeAll(openSpeakers(add));
             }
         }
+        // Joining or leaving may change the delay of the others too, eg
+        // if they share a stream, so all of them are worked out again
         synchronized(this) {
-            speakers = tempspeakers;
-            maxbytedelay = tempmaxbytedelay;
+            speakers = align(tempspeakers);
         }
         for (Iterator<Speaker> i = rem.iterator();i.hasNext();) {
             Speaker speaker = i.next();
+            volumedispatcher.forget(speaker);
             if (speaker.isOpen()) {
 //                log.debug("STOP, FLUSH, CLOSE "+speaker.getDisplayName());
                 speaker.close();
@@ -111,12 +248,15 @@ class MultiLine {
         return (float)(gain + trackgain);
     }
 
+    /**
+     * Set the volume. The speakers are updated asynchronously
+     */
     void setVolume(int volume, float trackgain) {
         this.volume = volume;
         this.trackgain = trackgain;
         for (Iterator<Speaker> i = speakers.keySet().iterator();i.hasNext();) {
             Speaker speaker = i.next();
-            speaker.setGain(getSpeakerGain(speaker, volume, trackgain));
+            volumedispatcher.setGain(speaker, getSpeakerGain(speaker, volume, trackgain));
         }
     }
 
@@ -132,15 +272,79 @@ class MultiLine {
         return sampleRate != 0;
     }
 
-    private boolean openSpeaker(Speaker speaker, SpeakerState state) {
-        synchronized(tracklock) {
-            speaker.open(sampleRate, bitsPerChannel, channels, signed, bigEndian);
+    /**
+     * Return true if open for audio in the specified format
+     */
+    synchronized boolean isOpen(float sampleRate, int bitsPerChannel, int channels, boolean signed, boolean bigEndian) {
+        return this.sampleRate == sampleRate && this.bitsPerChannel == bitsPerChannel && this.channels == channels && this.signed == signed && this.bigEndian == bigEndian;
+    }
+
+    private static synchronized ExecutorService getOpener() {
+        if (opener == null) {
+            opener = Executors.newFixedThreadPool(MAXOPENING, new ThreadFactory() {
+                int count;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "qTunes-speaker-open-"+(++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return opener;
+    }
+
+    /**
+     * Open the speakers in parallel, at most {@link #MAXOPENING} at a time, and
+     * return those that failed or didn't open within {@link #OPENTIMEOUT}.
+     * Must be called with tracklock held, so the format can't change.
+     */
+    private Collection<Speaker> openSpeakers(Collection<Speaker> toopen) {
+        Collection<Speaker> failed = new ArrayList<Speaker>();
+        Map<OpenTask,Future<Boolean>> tasks = new LinkedHashMap<OpenTask,Future<Boolean>>();
+        for (Iterator<Speaker> i = toopen.iterator();i.hasNext();) {
+            OpenTask task = new OpenTask(i.next());
+            tasks.put(task, getOpener().submit(task));
         }
+        boolean interrupted = false;
+        for (Iterator<Map.Entry<OpenTask,Future<Boolean>>> i = tasks.entrySet().iterator();i.hasNext();) {
+            Map.Entry<OpenTask,Future<Boolean>> e = i.next();
+            OpenTask task = e.getKey();
+            boolean ok = false;
+            while (true) {
+                try {
+                    ok = e.getValue().get(100, TimeUnit.MILLISECONDS).booleanValue();
+                    break;
+                } catch (TimeoutException e2) {
+                    if (task.isTimedOut()) {
+                        task.abandon();
+                        break;
+                    }
+                } catch (InterruptedException e2) {
+                    interrupted = true;
+                    task.abandon();
+                    break;
+                } catch (ExecutionException e2) {
+                    break;
+                }
+            }
+            if (!ok) {
+                failed.add(task.speaker);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failed;
+    }
+
+    private boolean openSpeaker(Speaker speaker) {
+        speaker.open(sampleRate, bitsPerChannel, channels, signed, bigEndian);
         if (speaker.getError() == null) {
 //            log.debug("OPENED: setting gain to "+getSpeakerGain(speaker, volume, trackgain));
-            speaker.setGain(getSpeakerGain(speaker, volume, trackgain));
-            state.bytedelay = speaker.getDelay() * bytespersecond / 1000 / speaker.getBufferSize() * speaker.getBufferSize();
-//            log.debug("OPEN("+sampleRate+", "+bitsPerChannel+", "+channels+", "+signed+", "+bigEndian+") & START "+speaker.getDisplayName()+" delay="+state.bytedelay);
+            float gain = getSpeakerGain(speaker, volume, trackgain);
+            speaker.setGain(gain);
+            volumedispatcher.setSent(speaker, gain);
+//            log.debug("OPEN("+sampleRate+", "+bitsPerChannel+", "+channels+", "+signed+", "+bigEndian+") & START "+speaker.getDisplayName()+" delay="+speaker.getSampleDelay());
             return true;
         } else {
             return false;
@@ -162,29 +366,93 @@ class MultiLine {
             this.channels = channels;
             this.signed = signed;
             this.bigEndian = bigEndian;
+            this.bytespersecond = (int)Math.round(sampleRate * bitsPerChannel * channels) >> 3;
+            int size = getQueueSize();
+            if (queue == null || queue.capacity() != size) {
+                queue = ByteBuffer.allocateDirect(size);
+                pushview = queue.duplicate();
+                mask = size - 1;
+            }
+            Map<Speaker,SpeakerState> tempspeakers = new HashMap<Speaker,SpeakerState>(speakers);
+            tempspeakers.keySet().removeAll(openSpeakers(tempspeakers.keySet()));
+            speakers = align(tempspeakers);
         }
+        if (pusher == null) {
+            pusher = new Pusher("qTunes-"+player.getContext().getServiceName()+"-encoder");
+            pusher.start();
+        }
+    }
 
-        maxbytedelay = 0;
-        this.bytespersecond = (int)Math.round(sampleRate * bitsPerChannel * channels) >> 3;
-        for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
+    /**
+     * Return new states for the speakers, each carrying on from the one
+     * it replaces, with the delay of every speaker measured again in bytes
+     * - a whole number of samples - and its offset from the largest. The
+     * delays are measured from the shortest, as only the differences
+     * matter. The pusher picks them all up at once when the map is published.
+     */
+    private Map<Speaker,SpeakerState> align(Map<Speaker,SpeakerState> states) {
+        Map<Speaker,SpeakerState> tempspeakers = new ConcurrentHashMap<Speaker,SpeakerState>();
+        int framesize = bitsPerChannel * channels >> 3;
+        Map<Speaker,Long> delays = new HashMap<Speaker,Long>();
+        long mindelay = Long.MAX_VALUE;
+        for (Iterator<Speaker> i = states.keySet().iterator();i.hasNext();) {
+            Speaker speaker = i.next();
+            if (isOpen() && speaker.isOpen()) {
+                long delay = Math.max(0, speaker.getSampleDelay());
+                delays.put(speaker, Long.valueOf(delay));
+                mindelay = Math.min(mindelay, delay);
+            }
+        }
+        int maxbytedelay = 0;
+        for (Iterator<Map.Entry<Speaker,SpeakerState>> i = states.entrySet().iterator();i.hasNext();) {
             Map.Entry<Speaker,SpeakerState> e = i.next();
             Speaker speaker = e.getKey();
-            SpeakerState state = e.getValue();
-            if (!openSpeaker(speaker, state)) {
-                i.remove();
-            } else {
-                maxbytedelay = Math.max(maxbytedelay, state.bytedelay);
+            SpeakerState state = new SpeakerState(e.getValue());
+            Long delay = delays.get(speaker);
+            if (delay != null) {
+                // The queue has to hold the largest delay and then some
+                state.bytedelay = (int)Math.min(delay.longValue() - mindelay, queue.capacity() / 2 / framesize) * framesize;
             }
+            maxbytedelay = Math.max(maxbytedelay, state.bytedelay);
+            tempspeakers.put(speaker, state);
         }
+        for (Iterator<SpeakerState> i = tempspeakers.values().iterator();i.hasNext();) {
+            SpeakerState state = i.next();
+            state.offset = maxbytedelay - state.bytedelay;
+        }
+        return tempspeakers;
+    }
+
+    /**
+     * Carry the position of the state on from the one it replaced, so what's
+     * being heard on the speaker stays put if its own delay hasn't changed,
+     * and return it
+     */
+    private static long carry(SpeakerState state) {
+        SpeakerState previous = state.previous;
+        if (previous != null) {
+            state.previous = null;
+            long t = carry(previous);
+            if (t != Long.MIN_VALUE) {
+                state.tail = t - previous.offset - previous.bytedelay + state.offset + state.bytedelay;
+            }
+        }
+        return state.tail;
     }
 
     synchronized void close() {
-        for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
-            Map.Entry<Speaker,SpeakerState> e = i.next();
-            Speaker speaker = e.getKey();
-            SpeakerState state = e.getValue();
-            speaker.close();
+        flushing = true;
+        synchronized(pushlock) {
+            for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
+                Map.Entry<Speaker,SpeakerState> e = i.next();
+                Speaker speaker = e.getKey();
+                SpeakerState state = e.getValue();
+                speaker.close();
+            }
+            flushing = false;
         }
+        // The speakers are closed, so there's nothing left to resume
+        paused = false;
         sampleRate = 0;
         bytespersecond = 0;
         update();
@@ -205,29 +473,114 @@ class MultiLine {
         return valid;
     }
 
-    synchronized void write(byte[] buf, int off, int len) {
+    /**
+     * Return the size of the queue from the "queuesize" property of the
+     * player, in bytes, rounded up to a power of two
+     */
+    private int getQueueSize() {
+        int size = DEFAULTQUEUESIZE;
+        String value = player.getContext().getProperty("queuesize");
+        if (value != null) {
+            try {
+                size = Math.max(MINQUEUESIZE, Math.min(MAXQUEUESIZE, Integer.parseInt(value)));
+            } catch (NumberFormatException e) { }
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Write to the queue for the pusher, blocking while it's full
+     */
+    void write(byte[] buf, int off, int len) {
+        write(ByteBuffer.wrap(buf, off, len));
+    }
+
+    /**
+     * Write the data between the position and limit of the buffer to the
+     * queue for the pusher, blocking while it's full. The data is copied
+     * straight from the buffer, which may be a view of a mapped file.
+     */
+    synchronized void write(ByteBuffer buf) {
         if (isValid()) {
-            int avail = queue.length - (int)(head-tail);
-            if (len > avail) {
-                throw new IllegalStateException(len+" > available="+avail+" queuesize="+queue.length+" head="+head+" tail="+tail);
+            final int limit = buf.limit();
+            while (buf.hasRemaining()) {
+                int n = reserve(buf.remaining());
+                int qh = (int)(head & mask);
+                int len1 = Math.min(n, queue.capacity() - qh);
+                queue.position(qh);
+                buf.limit(buf.position() + len1);
+                queue.put(buf);
+                if (len1 < n) {
+                    queue.position(0);
+                    buf.limit(buf.position() + n - len1);
+                    queue.put(buf);
+                }
+                buf.limit(limit);
+                head += n;
+                notifyAll();
             }
-            int qh = (int)(head % queue.length);
-            int len1 = qh + len - queue.length;
-            if (len1 <= 0) {
-//                log.debug("write: head="+head+" ql="+queue.length+" writing "+len+" to "+qh);
-                System.arraycopy(buf, off, queue, qh, len);
-            } else {
-//                log.debug("write: head="+head+" ql="+queue.length+" writing "+(len-len1)+" to "+qh+" then "+len1+" to 0");
-                System.arraycopy(buf, off, queue, qh, len - len1);
-                System.arraycopy(buf, off + len - len1, queue, 0, len1);
+        }
+    }
+
+    /**
+     * Write silence to the queue, blocking while it's full
+     */
+    private void writeSilence(int len) {
+        while (len > 0) {
+            int n = reserve(Math.min(len, SILENCE.length));
+            int qh = (int)(head & mask);
+            int len1 = Math.min(n, queue.capacity() - qh);
+            queue.position(qh);
+            queue.put(SILENCE, 0, len1);
+            if (len1 < n) {
+                queue.position(0);
+                queue.put(SILENCE, 0, n - len1);
+            }
+            head += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Return how many bytes, up to len, can be written to the queue now,
+     * waiting for the pusher to make room if it's full, so a writer that
+     * gets ahead is held back rather than failing.
+     */
+    private int reserve(int len) {
+        int avail;
+        while ((avail = queue.capacity() - (int)(head-tail)) <= 0) {
+            try {
+                wait(FULLWAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for queue");
+            }
+        }
+        return Math.min(len, avail);
+    }
+
+    /**
+     * Wait until the pusher has pushed everything written
+     */
+    private void awaitPushed() {
+        while ((pushedhead != head || pushing) && pusher != null && pusher.isAlive()) {
+            try {
+                wait(FULLWAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
-            head += len;
-            push();
         }
     }
 
+    /**
+     * Push what we can to the speakers. Called by the pusher with pushlock held
+     */
     private void push() {
-        long newtail = Long.MAX_VALUE;
+        final Map<Speaker,SpeakerState> speakers = this.speakers;
+        final ByteBuffer queue = pushview;
+        long newtail = Long.MAX_VALUE, newheard = Long.MIN_VALUE;
         // This loop may not push anything if current amount is less than any speaker
         // requires in it's buffer - possible if write has just finished short buffer
         // at end of song.
@@ -236,74 +589,112 @@ class MultiLine {
             Speaker speaker = e.getKey();
             SpeakerState state = e.getValue();
             int len = speaker.getBufferSize();
-            int qt;
-            if (state.tail == Long.MIN_VALUE) {
-                state.tail = Math.max(0, tail - state.bytedelay);
+            if (carry(state) == Long.MIN_VALUE) {
+                // New, so start in step with the others, or from the start
+                state.tail = heard == Long.MIN_VALUE ? 0 : heard + state.offset + state.bytedelay;
             }
-            while ((qt=(int)((state.tail - (maxbytedelay-state.bytedelay)) % queue.length)) >= 0 && len <= (head-state.tail)) {
-                int len1 = qt + len - queue.length;
-                if (len1 <= 0) {
-//                    log.debug("push: head="+head+" tail="+state.tail+" writing "+len+" to "+speaker.getDisplayName()+" from "+qt);
-                    speaker.write(queue, qt, len);
-                } else {
-                    speaker.write(queue, qt, len - len1);
-                    speaker.write(queue, 0, len1);
-//                    log.debug("push: head="+head+" tail="+state.tail+" writing "+(len-len1)+" to "+speaker.getDisplayName()+" from "+qt+" then "+len1+" from 0");
+            if (pushbuf.length < len) {
+                pushbuf = new byte[len];
+            }
+            while (!paused && !flushing && len <= head - state.tail) {
+                long pos = state.tail - state.offset;
+                if (pos < 0) {
+                    // Silence until those with longer delays have caught up
+                    int n = (int)Math.min(Math.min(len, SILENCE.length), -pos);
+                    speaker.write(SILENCE, 0, n);
+                    state.tail += n;
+                    continue;
+                }
+                int qt = (int)(pos & mask);
+                int len1 = Math.min(len, queue.capacity() - qt);
+                queue.position(qt);
+                queue.get(pushbuf, 0, len1);
+                if (len1 < len) {
+                    queue.position(0);
+                    queue.get(pushbuf, len1, len - len1);
                 }
+//                log.debug("push: head="+head+" tail="+state.tail+" writing "+len+" to "+speaker.getDisplayName()+" from "+qt);
+                speaker.write(pushbuf, 0, len);
                 state.tail += len;
-                newtail = Math.min(newtail, state.tail - state.bytedelay);
-            }
-            if (qt < 0) {
-                state.tail = head;
             }
+            // Keep what's being heard, so a speaker joining with a shorter delay
+            // can be fed it. It joins in step with whoever was fed most recently
+            newtail = Math.min(newtail, state.tail - state.offset - state.bytedelay);
+            newheard = Math.max(newheard, state.tail - state.offset - state.bytedelay);
         }
         if (newtail != Long.MAX_VALUE) {
             tail = newtail;
+            heard = newheard;
         }
         update();
     }
 
     /**
      * Called to clear the buffer of any pending data before moving to
-     * a new song. Not for pause!
+     * a new song. Not for pause! The pusher gives up what it's pushing
+     * rather than finishing it first.
      */
     synchronized void flush() {
-        if (isValid()) {
-            for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
-                Map.Entry<Speaker,SpeakerState> e = i.next();
-                Speaker speaker = e.getKey();
-                SpeakerState state = e.getValue();
-                speaker.flush();
-//                log.debug("FLUSH "+speaker.getDisplayName());
-                state.tail = 0;
+        flushing = true;
+        synchronized(pushlock) {
+            if (isValid()) {
+                for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
+                    Map.Entry<Speaker,SpeakerState> e = i.next();
+                    Speaker speaker = e.getKey();
+                    SpeakerState state = e.getValue();
+                    speaker.flush();
+//                    log.debug("FLUSH "+speaker.getDisplayName());
+                    state.tail = Long.MIN_VALUE;
+                    state.previous = null;
+                }
             }
+            head = tail = pushedhead = 0;
+            heard = Long.MIN_VALUE;
+            update();
+            flushing = false;
         }
-        head = tail = 0;
-        update();
+        notifyAll();
     }
 
     /**
      * Called to stop playback but not clear the buffer. For pausing.
+     * Not synchronized: the player thread may be blocked in write,
+     * holding the lock, until we resume. The pusher stops pushing
+     * until then, so it doesn't hold pushlock waiting on the speakers.
      */
-    synchronized void stop() {
-        if (isValid()) {
-            for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
-                Map.Entry<Speaker,SpeakerState> e = i.next();
-                Speaker speaker = e.getKey();
-                SpeakerState state = e.getValue();
-                speaker.flush();
-//                log.debug("STOP "+speaker.getDisplayName());
-                state.tail = state.tail - state.bytedelay;
+    void pause() {
+        paused = true;
+        for (Iterator<Speaker> i = speakers.keySet().iterator();i.hasNext();) {
+            Speaker speaker = i.next();
+            if (speaker.isOpen() && speaker.getError() == null) {
+                speaker.pause();
             }
         }
     }
 
+    /**
+     * Called to carry on from where {@link #pause} stopped
+     */
+    void resume() {
+        for (Iterator<Speaker> i = speakers.keySet().iterator();i.hasNext();) {
+            Speaker speaker = i.next();
+            if (speaker.isOpen() && speaker.getError() == null) {
+                speaker.resume();
+            }
+        }
+        synchronized(this) {
+            paused = false;
+            pushedhead = -1;    // Push what was left when we paused
+            notifyAll();
+        }
+    }
+
     /**
      * Called to push any remaining buffered data out to the speakers.
      * For when the audio stream has ended and nothing follows it.
      */
     synchronized void drain() {
-        int minbuf = Integer.MAX_VALUE, maxbuf = 0;
+        int minbuf = Integer.MAX_VALUE, maxbuf = 0, maxoffset = 0;
         for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
             Map.Entry<Speaker,SpeakerState> e = i.next();
             Speaker speaker = e.getKey();
@@ -311,25 +702,29 @@ class MultiLine {
             int speakerbuf = speaker.getBufferSize();
             minbuf = Math.min(minbuf, speakerbuf);
             maxbuf = Math.max(maxbuf, speakerbuf);
+            maxoffset = Math.max(maxoffset, state.offset);
         }
-        long newhead = tail + maxbuf + maxbytedelay;
+        // Enough silence that the speaker with the shortest delay is fed everything
+        long newhead = head + maxbuf + maxoffset;
 //        log.debug("draining: head="+head+" tail="+tail+" newhead="+newhead);
         while (head < newhead) {
-            for (int j=0;j<minbuf;j++) {
-                queue[(int)(head++ % queue.length)] = 0;
-            }
-            push();
+            writeSilence(minbuf);
         }
-        for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
-            Map.Entry<Speaker,SpeakerState> e = i.next();
-            Speaker speaker = e.getKey();
-            SpeakerState state = e.getValue();
-            speaker.drain();
-//            log.debug("DRAIN "+speaker.getDisplayName());
-            state.tail = 0;
+        awaitPushed();
+        synchronized(pushlock) {
+            for (Iterator<Map.Entry<Speaker,SpeakerState>> i = speakers.entrySet().iterator();i.hasNext();) {
+                Map.Entry<Speaker,SpeakerState> e = i.next();
+                Speaker speaker = e.getKey();
+                SpeakerState state = e.getValue();
+                speaker.drain();
+//                log.debug("DRAIN "+speaker.getDisplayName());
+                state.tail = Long.MIN_VALUE;
+                state.previous = null;
+            }
+            head = tail = pushedhead = 0;
+            heard = Long.MIN_VALUE;
+            update();
         }
-        head = tail = 0;
-        update();
     }
 
     private void update() {
@@ -1,9 +1,8 @@
 package com.nixus.raop.player;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -25,6 +24,7 @@ import com.nixus.raop.speaker.Speaker;
 public class PlayerImpl implements Player, Runnable, Listener {
 
 	private static final int BUFSIZE = 4096;
+	private static final String DEFAULTFILE = "/sdcard/gio.wav", CAPTURE = "socket://";
 	private ServiceContext context;
 
 	private int revision;
@@ -36,7 +36,27 @@ public class PlayerImpl implements Player, Runnable, Listener {
 	private volatile int volume;
 	private List<String> pendingspeakernames;
 
-	private boolean stopped = true;
+	/**
+	 * The state of the play thread, which only runs while PLAYING or DRAINING
+	 * and otherwise waits for a command. Changes are made with the lock held
+	 * and notified, so the thread reacts to them at once.
+	 */
+	enum State {
+		/** Nothing to play until play() is called */
+		IDLE,
+		/** Reading the source and writing it to the speakers */
+		PLAYING,
+		/** Paused by stop(), with everything buffered kept for play() */
+		PAUSED,
+		/** The source has ended and the speakers are playing out what's left */
+		DRAINING,
+		/** Playing failed. play() tries again */
+		ERROR
+	}
+
+	private State state = State.IDLE;       // guarded by this
+	private State pausedstate;              // guarded by this - state to return to from PAUSED or ERROR
+	private long seek = -1;                 // guarded by this
 
 	public PlayerImpl() {
 		multiline = new MultiLine(this);
@@ -64,74 +84,202 @@ public class PlayerImpl implements Player, Runnable, Listener {
 	 * The main play thread. Should be bulletproof
 	 */
 	public void run() {
-		byte[] buf = new byte[BUFSIZE];
-		InputStream in = null;
-		int streamoffset;
+		AudioSource in = null;
 		try {
 			context.fireEvent("started", null);
-			in = new FileInputStream(new File("/sdcard/gio.wav"));
-
-			streamoffset = 0;
-			multiline.open(44100, 16,2, true, false);
-
-			while (!cancelled) {
-
-
-				while (!stopped) {
-					setVolume(getVolume());
-
-					int n;
-					if (!multiline.hasSpeakers()) {
-						cancelled = true;
-						context.fireEvent("error", new Object[] { "exception", new IllegalStateException("No Speakers for \""+getDisplayName()+"\"") });
-					} else if ((n = in.read(buf, 0, buf.length)) >= 0) {
-						streamoffset += n;
-						multiline.write(buf, 0, n);;
-					} else {
-						context.debug("Player ends track");
-						context.fireEvent("stopPlaying", new Object[] { "track", 0});
-					}
-					context.debug("Player ends loop:  cancelled="+cancelled);
-				} 
+			try {
+				in = openSource(null);
+			} catch (IOException e) {
+				context.warn("Can't open source", e);
 			}
 
-		}
-		catch (Exception e) {
-			context.warn("Play failed", e);
-			if (in!=null) {
-				try { in.close(); } catch (Exception e2) {} 
-				in = null;
-			}
-			if (multiline.isOpen()) {
+			State state;
+			while ((state=awaitActive()) != null) {
 				try {
-					multiline.flush();
-					multiline.close();
-				} catch (Exception e2) {}
+					if (state == State.PLAYING) {
+						ByteBuffer block;
+						long seek;
+						if (!multiline.hasSpeakers()) {
+							setState(State.PLAYING, State.ERROR);
+							context.fireEvent("error", new Object[] { "exception", new IllegalStateException("No Speakers for \""+getDisplayName()+"\"") });
+						} else {
+							in = openSource(in);
+							if ((seek = takeSeek()) >= 0) {
+								multiline.flush();
+								in.seek(seek);
+							}
+							if ((block = in.read(BUFSIZE)) != null) {
+								multiline.write(block);
+							} else {
+								context.debug("Player ends track");
+								setState(State.PLAYING, State.DRAINING);
+							}
+						}
+					} else if (state == State.DRAINING) {
+						multiline.drain();
+						in.close();
+						in = null;
+						if (setState(State.DRAINING, State.IDLE)) {
+							context.fireEvent("stopPlaying", new Object[] { "track", 0});
+						}
+					}
+				}
+				catch (Exception e) {
+					context.warn("Play failed", e);
+					if (in!=null) {
+						try { in.close(); } catch (Exception e2) {} 
+						in = null;
+					}
+					if (multiline.isOpen()) {
+						try {
+							multiline.flush();
+							multiline.close();
+						} catch (Exception e2) {}
+					}
+					synchronized(this) {
+						// The line is closed, so there's nothing to carry on with
+						pausedstate = null;
+						setState(state, State.ERROR);
+					}
+				}
 			}
 
 		}
 		finally {
 
+			// Clear any interrupt from stopService(), which would stop the cleanup
+			Thread.interrupted();
 			try {
 				if (multiline.isOpen()) {
-					multiline.drain();
+					// A paused stream would never finish draining, and flushing
+					// it doesn't wait for the pusher, which is idle while paused
+					if (getState() == State.PAUSED || getState() == State.ERROR) {
+						multiline.flush();
+					} else {
+						multiline.drain();
+					}
 					multiline.close();
 				}
-				in.close();
+				if (in != null) {
+					in.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 
+	}
 
+	/**
+	 * Open the file named by the "file" property if the source isn't open,
+	 * and (re)open the speakers if they're not open for its format. A file
+	 * of "socket://" or "socket://port" plays what the patched AudioFlinger
+	 * captures, as the native raop_play does, at the rate the mixer runs
+	 * at given by the "capturerate" property - 44100 if not set, but many
+	 * devices mix at 48000. Sources in a format the
+	 * speakers don't take are converted, with the quality set by the
+	 * "resample" property - "fast", "medium" or "best".
+	 */
+	private AudioSource openSource(AudioSource in) throws IOException {
+		if (in == null) {
+			String file = context.getProperty("file");
+			if (file != null && file.startsWith(CAPTURE)) {
+				int port = CaptureSource.DEFAULTPORT;
+				if (file.length() > CAPTURE.length()) {
+					try {
+						port = Integer.parseInt(file.substring(CAPTURE.length()));
+					} catch (NumberFormatException e) {
+						throw new IOException("Bad capture port in \""+file+"\"");
+					}
+				}
+				int rate = CaptureSource.DEFAULTRATE;
+				String capturerate = context.getProperty("capturerate");
+				if (capturerate != null) {
+					try {
+						rate = Integer.parseInt(capturerate);
+					} catch (NumberFormatException e) {
+						rate = 0;
+					}
+					if (rate <= 0) {
+						throw new IOException("Bad capture rate \""+capturerate+"\"");
+					}
+				}
+				in = new CaptureSource(context, port, rate);
+			} else {
+				in = new MappedWavSource(new File(file == null ? DEFAULTFILE : file));
+			}
+			FormatConverter.Quality quality = FormatConverter.Quality.MEDIUM;
+			String resample = context.getProperty("resample");
+			if (resample != null) {
+				try {
+					quality = FormatConverter.Quality.valueOf(resample.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					context.warn("Unknown resample quality \""+resample+"\"", null);
+				}
+			}
+			try {
+				in = FormatConverter.wrap(in, quality);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		if (!multiline.isOpen(in.getSampleRate(), in.getBitsPerChannel(), in.getChannels(), in.isSigned(), in.isBigEndian())) {
+			if (multiline.isOpen()) {
+				multiline.drain();
+				multiline.close();
+			}
+			multiline.open(in.getSampleRate(), in.getBitsPerChannel(), in.getChannels(), in.isSigned(), in.isBigEndian());
+		}
+		return in;
+	}
 
+	/**
+	 * Move to the specified sample of the source. What's buffered is
+	 * discarded, and the play thread carries on from there
+	 */
+	public synchronized void seek(long sample) {
+		seek = Math.max(0, sample);
+		notifyAll();
+	}
+
+	private synchronized long takeSeek() {
+		long seek = this.seek;
+		this.seek = -1;
+		return seek;
 	}
 
+	/**
+	 * Wait until there's something for the play thread to do, and return
+	 * the state to do it in, or null if the thread has been cancelled.
+	 * Doesn't use any CPU while waiting.
+	 */
+	private synchronized State awaitActive() {
+		while (!cancelled && state != State.PLAYING && state != State.DRAINING) {
+			try {
+				wait();
+			} catch (InterruptedException e) { }
+		}
+		return cancelled ? null : state;
+	}
 
+	/**
+	 * Change the state, if it's still the state we expect
+	 */
+	private synchronized boolean setState(State from, State to) {
+		if (state != from) {
+			return false;
+		}
+		state = to;
+		notifyAll();
+		return true;
+	}
 
+	synchronized State getState() {
+		return state;
+	}
 
 	public synchronized void interrupt() {
-		stopped = true;
 		cancelled = true;
 		notifyAll();
 	}
@@ -139,9 +287,22 @@ public class PlayerImpl implements Player, Runnable, Listener {
 	//----------------------------------------------------------------------------------
 
 
-	public synchronized void stop() {
-		stopped = true;
-		notifyAll();
+	/**
+	 * Pause playing. The speakers stop at once and keep what's buffered
+	 */
+	public void stop() {
+		synchronized(this) {
+			if (state != State.PLAYING && state != State.DRAINING) {
+				return;
+			}
+			pausedstate = state;
+			state = State.PAUSED;
+			if (multiline.isOpen()) {
+				multiline.pause();
+			}
+			notifyAll();
+		}
+		notifyPlayChanged();
 	}
 
 
@@ -229,6 +390,7 @@ public class PlayerImpl implements Player, Runnable, Listener {
 		} catch (Exception e) {
 			volume = 50;
 		}
+		multiline.setVolume(volume, 0);
 
 
 		thread = new Thread(this, "qTunes-"+context.getServiceName());
@@ -259,6 +421,7 @@ public class PlayerImpl implements Player, Runnable, Listener {
 		try {
 			thread.join();
 		} catch (InterruptedException e) { }
+		multiline.dispose();
 		multiline = null;
 		context.removeListener(this);
 	}
@@ -272,6 +435,7 @@ public class PlayerImpl implements Player, Runnable, Listener {
 		map.put("name", getDisplayName());
 		map.put("revision", getRevision());
 		map.put("volume", getVolume());
+		map.put("state", getState().toString());
 		Collection<Speaker> speakers = getSpeakers();
 		List<String> speakerlist = new ArrayList<String>();
 		for (Iterator<Speaker> i = speakers.iterator();i.hasNext();) {
@@ -293,23 +457,61 @@ public class PlayerImpl implements Player, Runnable, Listener {
 					speaker.setPlayer(this);
 				}
 			} else if (speaker.getPlayer() == PlayerImpl.this && name.equals("speakerError")) {
-				stop();
+				fail();
 				context.fireEvent("error", new Object[] { "exception", properties.get("exception"), "speaker", speaker });
 			}
 		}
 	}
 
+	/**
+	 * Stop playing because a speaker failed. As for stop(), but the
+	 * player is left in ERROR until play() is called
+	 */
+	private void fail() {
+		synchronized(this) {
+			if (state != State.PLAYING && state != State.DRAINING) {
+				return;
+			}
+			pausedstate = state;
+			state = State.ERROR;
+			if (multiline.isOpen()) {
+				multiline.pause();
+			}
+			notifyAll();
+		}
+		notifyPlayChanged();
+	}
+
+	/**
+	 * Start playing, or carry on from where stop() paused
+	 */
 	public void play(){
-		this.cancelled = false;
-		this.stopped = false;
+		synchronized(this) {
+			if (state == State.PLAYING || state == State.DRAINING) {
+				return;
+			}
+			if (state == State.PAUSED || state == State.ERROR) {
+				if (multiline.isOpen()) {
+					multiline.resume();
+				}
+			}
+			state = pausedstate != null ? pausedstate : State.PLAYING;
+			pausedstate = null;
+			notifyAll();
+		}
+		notifyPlayChanged();
 	}
 	
 	public void setEnabled(boolean enabled){
-		this.stopped = !enabled;
+		if (enabled) {
+			play();
+		} else {
+			stop();
+		}
 	}
 	
-	public boolean isEnabled(){
-		return !stopped;
+	public synchronized boolean isEnabled(){
+		return state == State.PLAYING || state == State.DRAINING;
 	}
 
 }
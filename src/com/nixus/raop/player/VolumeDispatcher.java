@@ -0,0 +1,112 @@
+package com.nixus.raop.player;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nixus.raop.speaker.Speaker;
+
+/**
+ * Sends gain changes to speakers from its own thread, so whoever changes
+ * the volume - including the audio thread - never waits on the network.
+ *
+ * Changes are collected for {@link #DEBOUNCE} ms after the first one, so
+ * dragging a volume slider sends at most one change per speaker in that
+ * time, and always the last value. A gain is only sent to a speaker if
+ * it differs from the last one sent to it.
+ */
+class VolumeDispatcher implements Runnable {
+
+    private static final long DEBOUNCE = 50;   // ms
+
+    private final String name;
+    private final Map<Speaker,Float> pending = new LinkedHashMap<Speaker,Float>();
+    private final Map<Speaker,Float> sent = new ConcurrentHashMap<Speaker,Float>();
+    private Thread thread;
+    private long due;
+    private boolean cancelled;
+
+    VolumeDispatcher(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Queue a change of gain for the speaker
+     */
+    synchronized void setGain(Speaker speaker, float gain) {
+        if (cancelled) {
+            return;
+        }
+        pending.put(speaker, Float.valueOf(gain));
+        if (due == 0) {
+            due = System.currentTimeMillis() + DEBOUNCE;
+        }
+        if (thread == null) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Record that the speaker has had its gain set directly, eg when it's opened
+     */
+    void setSent(Speaker speaker, float gain) {
+        sent.put(speaker, Float.valueOf(gain));
+    }
+
+    /**
+     * Forget the speaker, eg when it's removed or closed
+     */
+    synchronized void forget(Speaker speaker) {
+        pending.remove(speaker);
+        sent.remove(speaker);
+    }
+
+    synchronized void stop() {
+        cancelled = true;
+        pending.clear();
+        notifyAll();
+    }
+
+    public void run() {
+        Map<Speaker,Float> batch = new LinkedHashMap<Speaker,Float>();
+        while (true) {
+            synchronized(this) {
+                while (!cancelled) {
+                    long delay = pending.isEmpty() ? 0 : due - System.currentTimeMillis();
+                    if (!pending.isEmpty() && delay <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException e) { }
+                }
+                if (cancelled) {
+                    thread = null;
+                    return;
+                }
+                batch.putAll(pending);
+                pending.clear();
+                due = 0;
+            }
+            for (Iterator<Map.Entry<Speaker,Float>> i = batch.entrySet().iterator();i.hasNext();) {
+                Map.Entry<Speaker,Float> e = i.next();
+                Speaker speaker = e.getKey();
+                Float gain = e.getValue();
+                if (!gain.equals(sent.get(speaker))) {
+                    try {
+                        speaker.setGain(gain.floatValue());
+                        sent.put(speaker, gain);
+                    } catch (Exception e2) {
+                        speaker.getContext().warn("Can't set gain", e2);
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+}
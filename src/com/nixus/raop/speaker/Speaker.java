@@ -20,6 +20,13 @@ public interface Speaker extends Service {
      */
     public int getDelay();
 
+    /**
+     * Return the delay in samples, plus any latency of the speaker itself,
+     * for lining speakers up to the sample. Only meaningful once the
+     * speaker is open.
+     */
+    public int getSampleDelay();
+
     /**
      * Return the size of the speaker buffer in bytes.
      */
@@ -94,6 +101,18 @@ public interface Speaker extends Service {
      */
     public void flush();
 
+    /**
+     * Stop playing without discarding the data written to the speaker, so
+     * it can be resumed from where it stopped. Writing blocks while paused
+     * once the speaker's buffer is full.
+     */
+    public void pause();
+
+    /**
+     * Resume playing after {@link #pause}
+     */
+    public void resume();
+
     /**
      * Block until the data already written to the speaker completes
      * If it fails, set the error.
@@ -0,0 +1,122 @@
+package com.nixus.raop.speaker.airport;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.SecureRandom;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypt the audio stream with AES-CBC under a random key, which is sent
+ * to the speakers wrapped with the AirPort's RSA public key.
+ *
+ * Getting a SecureRandom seeded, parsing the RSA key and looking up ciphers
+ * are all slow on a phone, so they're done once, and {@link #prepare} does
+ * them in the background before the first stream is opened. AES ciphers
+ * are pooled and reused from one stream to the next.
+ */
+class AesEncryption implements StreamEncryption {
+
+    private static final String AESTRANSFORM = "AES/CBC/NoPadding";
+    // Following cipher name has only been tested with Sun JCE Provider:
+    // the naming scheme appears idiosyncratic so may not work with others.
+    private static final String RSATRANSFORM = "RSA/NONE/OAEPWithSHA1AndMGF1Padding", RSAPROVIDER = "Crypto";
+    private static final String MODULUS = "E7D744F2A2E2788B6C1F55A08EB70544A8FA7945AA8BE6C62CE5F51CBDD4DC6842FE3D1083DD2EDEC1BFD4252DC02E6F398BDF0E6148EA84855E2E442DA6D62664F674A1F304929ADE4F6893EF2DF6E711A8C77A0D91C9D980822E50D12922AFEA40EA9F0E14C0F76938C5F3882FC0323DD9FE55155F51BB5921C201629FD73352D5E2EFAABF9BA048D7B813A2B6767F6C3CCF1EB4CE673D037B0D2EA30C5FFFEB06F8D08ADDE409571A9C689FEF10728855DD8CFB9A8BEF5C8943EF3B5FAA15DDE698BEDDF3599603EB3E6F61372BB628F6559F599A78BF500687AA7F4976C0562D412956F8989E18A6355BD81597825E0FC875343EC782117625CDBF98447B";
+    private static final int POOLSIZE = 2;
+
+    private static final Queue<Cipher> pool = new ConcurrentLinkedQueue<Cipher>();
+    private static SecureRandom rng;
+    private static Cipher keycipher;
+    private static Thread preparer;
+
+    private final Cipher cipher;
+    private final String attributes;
+
+    /**
+     * Start preparing, in the background, everything needed to open an
+     * encrypted stream. Can be called any number of times.
+     */
+    static synchronized void prepare() {
+        if (preparer == null) {
+            preparer = new Thread("qTunes-airtunes-prepare") {
+                public void run() {
+                    try {
+                        getRandom();
+                        wrapKey(new byte[16]);
+                        while (pool.size() < POOLSIZE) {
+                            pool.offer(Cipher.getInstance(AESTRANSFORM));
+                        }
+                    } catch (GeneralSecurityException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            preparer.setDaemon(true);
+            preparer.setPriority(Thread.MIN_PRIORITY);
+            preparer.start();
+        }
+    }
+
+    /**
+     * Return the SecureRandom, seeding it on first use
+     */
+    private static synchronized SecureRandom getRandom() {
+        if (rng == null) {
+            rng = new SecureRandom();
+            rng.nextBytes(new byte[1]);
+        }
+        return rng;
+    }
+
+    /**
+     * Encrypt the AES key with the RSA public key
+     */
+    private static synchronized byte[] wrapKey(byte[] key) throws GeneralSecurityException {
+        if (keycipher == null) {
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(new BigInteger(MODULUS, 16), new BigInteger("65537"));
+            Cipher c = Cipher.getInstance(RSATRANSFORM, RSAPROVIDER);
+            c.init(Cipher.ENCRYPT_MODE, KeyFactory.getInstance("RSA").generatePublic(spec));
+            keycipher = c;
+        }
+        return keycipher.doFinal(key);
+    }
+
+    AesEncryption() throws GeneralSecurityException {
+        byte[] rawkey = new byte[16];
+        byte[] rawiv = new byte[16];
+        SecureRandom rng = getRandom();
+        synchronized(rng) {
+            rng.nextBytes(rawkey);
+            rng.nextBytes(rawiv);
+        }
+        Cipher cipher = pool.poll();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AESTRANSFORM);
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(rawkey, "AES"), new IvParameterSpec(rawiv));
+        this.cipher = cipher;
+        this.attributes = "a=rsaaeskey:"+AirtunesSpeaker.base64encode(wrapKey(rawkey), false)+"\r\n" +
+                          "a=aesiv:"+AirtunesSpeaker.base64encode(rawiv, false)+"\r\n";
+    }
+
+    public Cipher getCipher() {
+        return cipher;
+    }
+
+    public String getSDPAttributes() {
+        return attributes;
+    }
+
+    public void close() {
+        if (pool.size() < POOLSIZE) {
+            pool.offer(cipher);
+        }
+    }
+
+}
@@ -1,30 +1,35 @@
 package com.nixus.raop.speaker.airport;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.KeyFactory;
 import java.security.Provider;
-import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.Security;
-import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import com.nixus.raop.core.ServiceContext;
 
@@ -35,134 +40,337 @@ import com.nixus.raop.core.ServiceContext;
  */
 public class AirtunesManager {
 
-    private static final int SYNCFREQUENCY = 126, PACKETSIZE = 352, QUEUELENGTH = 100;
-    private static final int MSECMULT = 4294967;
-    private static final long PACKETSPERNANO = 352l * 1000 * 1000 * 1000 / 44100;
-    private static long epoch; // 2208988800l - 1281457956l;
+    private static final int SYNCFREQUENCY = 126, FASTSYNCFREQUENCY = 32, PACKETSIZE = 352, QUEUELENGTH = 100, HISTORYLENGTH = 512;
+    private static final long MAXJITTER = 2000000;      // 2ms
+    private static final float TRIMSTEP = 0.5f;         // dB
+    private static final int MAXREKEYING = 4;           // Speakers re-keyed at once
+    private static ExecutorService rekeyer;
 
     private final String name;
     private final ServiceContext context;
-    private int rtptime, rtpseq, packetcount, ssrc;
+    private volatile int rtptime, rtpseq;
+    private int packetcount, ssrc, nextsync;
+    private volatile int synclatency, syncfrequency = SYNCFREQUENCY;
     private boolean speakerstarted;
-    private DatagramSocket controlsocket, timingsocket;
-    private Thread timingthread;
-    private ScheduledThreadPoolExecutor stpe;
-    private Cipher cipher;
-    private String cipherkey, cipheriv;
-    private ArrayBlockingQueue<byte[]> packetqueue;
+    private final AirtunesPortService ports;
+    private volatile Pacer pacer;
+    private volatile AudioFanout fanout;
+    private volatile StreamEncryption encryption;
     private Map<String,AirtunesSpeaker> speakers = new ConcurrentHashMap<String,AirtunesSpeaker>();
+    private final Set<AirtunesSpeaker> started = new HashSet<AirtunesSpeaker>();   // guarded by speakers
+    private final Map<InetAddress,AirtunesSpeaker> timingspeakers = new ConcurrentHashMap<InetAddress,AirtunesSpeaker>();
+    private final Map<InetAddress,AirtunesSpeaker> controlspeakers = new ConcurrentHashMap<InetAddress,AirtunesSpeaker>();
+    private final NtpClock clock = NtpClock.getInstance();
+    private DatagramSocket controlsocket;
+    private final ThreadPoolExecutor control;
+    private final AtomicReference<Drain> draining = new AtomicReference<Drain>();
+    private final AtomicInteger flushes = new AtomicInteger();
+    private long playedby;      // sender thread only
+    private final Object pauselock = new Object();
+    private boolean paused;     // guarded by pauselock
+    private volatile int replay;
+    private final ByteBuffer replaybuffer = ByteBuffer.allocateDirect(PACKETSIZE*4 + 15);
 
-    AirtunesManager(String name, ServiceContext context) {
+    /**
+     * A drain waiting for the packets published before it to play out.
+     * If a second drain is requested before the first completes it
+     * replaces it, and completes it when it completes itself.
+     */
+    private static class Drain {
+        final long mark;
+        final Drain previous;
+        final Promise<Void> promise = new Promise<Void>();
+        long end;               // sender thread only
+        boolean due;            // sender thread only
+
+        Drain(long mark, Drain previous) {
+            this.mark = mark;
+            this.previous = previous;
+        }
+
+        void complete() {
+            for (Drain d = this;d != null;d = d.previous) {
+                d.promise.set(null);
+            }
+        }
+    }
+
+    AirtunesManager(final String name, ServiceContext context, AirtunesPortService ports) {
         this.name = name;
         this.context = context;
+        this.ports = ports;
+        // FLUSH requests and drain completions are run from here, so neither
+        // the caller nor the sender waits on them. The thread exits when idle.
+        control = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qTunes-airtunes-"+name+"-control");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        control.allowCoreThreadTimeOut(true);
     }
 
-    private synchronized void start() {
-        context.debug("Starting AirtunesManager for \""+name+"\"");
-        SecureRandom rng = new SecureRandom();
-        try {
-            byte[] rawcipherkey = new byte[16];
-            byte[] rawcipheriv = new byte[16];
-            rng.nextBytes(rawcipherkey);
-            rng.nextBytes(rawcipheriv);
-            this.cipher = Cipher.getInstance("AES/CBC/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(rawcipherkey, "AES"), new IvParameterSpec(rawcipheriv));
-            this.cipherkey = AirtunesSpeaker.base64encode(doRSAEncrypt(rawcipherkey), false);
-            this.cipheriv  = AirtunesSpeaker.base64encode(rawcipheriv, false);
-        } catch (GeneralSecurityException e) {
-        	e.printStackTrace();
-            throw new RuntimeException(e);
+    /**
+     * Set whether audio is sent as compressed ALAC rather than uncompressed
+     * frames. Less data on the network for each speaker, at some CPU cost.
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Set whether gain is applied to the stream itself, with only what's
+     * left over sent to each speaker as its volume - the default. If not,
+     * every change of gain is sent to the speaker. Soft gain saves RTSP
+     * requests during fades and ducks; a change is heard after the latency
+     * given to the speakers, as it's applied as packets are sent.
+     */
+    public void setSoftGain(boolean softgain) {
+        this.softgain = softgain;
+        updateGain();
+    }
+
+    /**
+     * Called when the gain asked for by one of the speakers changes. The
+     * stream is given the gain of the loudest speaker, up to unity, and each
+     * speaker is trimmed from there with its own volume. So a fade or duck
+     * applied to every speaker only moves the stream gain, which is ramped
+     * sample by sample as packets are sent, and no speaker needs to be told.
+     * A speaker's volume is only sent if its trim moves by {@link #TRIMSTEP}
+     * or more. The stream is only muted if every speaker is. Every speaker
+     * is sent the same packets, so there's no in-band gain per speaker -
+     * that would mean packing, encrypting and keeping history for each.
+     *
+     * A change to the stream gain is heard when the packets being sent now
+     * are played, a change to the volume of a speaker straight away. The
+     * volumes are worked out under the lock but sent after it, by the
+     * caller - normally the player's VolumeDispatcher thread, so that's
+     * the one path by which volumes reach the speakers.
+     */
+    void updateGain() {
+        List<AirtunesSpeaker> changed = new ArrayList<AirtunesSpeaker>();
+        synchronized(gainlock) {
+            float stream = Float.NEGATIVE_INFINITY;
+            boolean muted = false;
+            for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
+                AirtunesSpeaker speaker = i.next();
+                if (speaker.isGainRequested()) {
+                    float gain = speaker.getRequestedGain();
+                    if (gain != gain) {
+                        muted = true;
+                    } else if (gain > stream) {
+                        stream = gain;
+                    }
+                }
+            }
+            if (!softgain || (stream == Float.NEGATIVE_INFINITY && !muted)) {
+                stream = 0;
+            } else if (stream == Float.NEGATIVE_INFINITY) {
+                stream = Float.NaN;
+            } else {
+                stream = Math.min(0, stream);
+            }
+            gainstage.setGain(stream);
+            for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
+                AirtunesSpeaker speaker = i.next();
+                if (speaker.isGainRequested()) {
+                    float gain = speaker.getRequestedGain();
+                    if (gain == gain) {
+                        if (speaker.setVolume(gain - stream, softgain ? TRIMSTEP : 0)) {
+                            changed.add(speaker);
+                        }
+                    } else if (stream == stream) {
+                        if (speaker.setVolume(Float.NaN, 0)) {
+                            changed.add(speaker);
+                        }
+                    }
+                }
+            }
+        }
+        for (Iterator<AirtunesSpeaker> i = changed.iterator();i.hasNext();) {
+            i.next().sendVolume();
         }
+    }
+
+    /**
+     * Return a Map describing the state of the sender, or null if it's not running
+     */
+    Map<String,Object> reportState() {
+        Pacer pacer = this.pacer;
+        if (pacer == null) {
+            return null;
+        }
+        Map<String,Object> map = pacer.reportState();
+        map.put("synclatency", synclatency);
+        map.put("syncfrequency", syncfrequency);
+        map.put("gain", gainstage.getGain());
+        return map;
+    }
+
+    /**
+     * Start the stream
+     * @param cleartext if true, send the audio unencrypted
+     */
+    private synchronized void start(boolean cleartext) {
+        context.debug("Starting AirtunesManager for \""+name+"\""+(cleartext ? " unencrypted" : ""));
+        Random rng = new Random();
+        setEncryption(cleartext);
 
         this.rtpseq = rng.nextInt(8192); 
         this.rtptime = rng.nextInt(65536); 
         this.ssrc = rng.nextInt(); 
         this.packetcount = 0;
         this.speakerstarted = false;
-        this.epoch = 0;
-        this.packetqueue = new ArrayBlockingQueue<byte[]>(QUEUELENGTH);
-
-        int controlport = 6001;
-        do {
-            try {
-                controlsocket = new DatagramSocket(controlport);
-            } catch (Exception e) {
-                controlport++;
-            }
-        } while (controlsocket == null && controlport < 65000);
-        int timingport = controlport + 1;
-        do {
-            try {
-                timingsocket = new DatagramSocket(timingport);
-            } catch (Exception e) {
-                timingport++;
-            }
-        } while (timingsocket == null && timingport < 65000);
+        this.ring = new PacketRing(QUEUELENGTH, FramePacker.FRAMESIZE + 1);
+        history.clear();
 
+        controlsocket = ports.getControlSocket();
         if (controlsocket==null) {
-            throw new IllegalStateException("Can't open ports");
+            throw new IllegalStateException("Control port is closed");
         }
-        timingthread = createTimingThread();
-        timingthread.start();
+        ports.register(this);
 
-        stpe = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(null, r, "qTunes-airtunes-"+name+"-audiosender");
-                thread.setPriority(Thread.MAX_PRIORITY - 1);
-                return thread;
-            }
-        });
-        stpe.scheduleAtFixedRate(createSender(), PACKETSPERNANO, PACKETSPERNANO, TimeUnit.NANOSECONDS);
-
-        // Write constants to packetdata arrays, for speed
-        for (int i=0;i<packetdata.length;i++) {
-            byte[] data = packetdata[i];
-            data[0] = (byte)(0x80);
-            writeInt(ssrc, data, 8);
+        try {
+            fanout = new AudioFanout();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open audio channel", e);
         }
-        cipherinput[0] = (byte)0x20;
-        cipherinput[1] = 0;
+
+        // Write constants to the packet buffer, for speed
+        packet.put(0, (byte)0x80);
+        packet.putInt(8, ssrc);
+
+        pacer = new Pacer("qTunes-airtunes-"+name+"-audiosender", PACKETSIZE, createSender());
+        pacer.start();
     }
 
-    private byte[] doRSAEncrypt(byte[] plaintextbytes) throws GeneralSecurityException {
-        BigInteger modulus = new BigInteger("E7D744F2A2E2788B6C1F55A08EB70544A8FA7945AA8BE6C62CE5F51CBDD4DC6842FE3D1083DD2EDEC1BFD4252DC02E6F398BDF0E6148EA84855E2E442DA6D62664F674A1F304929ADE4F6893EF2DF6E711A8C77A0D91C9D980822E50D12922AFEA40EA9F0E14C0F76938C5F3882FC0323DD9FE55155F51BB5921C201629FD73352D5E2EFAABF9BA048D7B813A2B6767F6C3CCF1EB4CE673D037B0D2EA30C5FFFEB06F8D08ADDE409571A9C689FEF10728855DD8CFB9A8BEF5C8943EF3B5FAA15DDE698BEDDF3599603EB3E6F61372BB628F6559F599A78BF500687AA7F4976C0562D412956F8989E18A6355BD81597825E0FC875343EC782117625CDBF98447B", 16);
-        BigInteger exponent = new BigInteger("65537");
-        KeyFactory keyfactory = KeyFactory.getInstance("RSA");
-        PublicKey key = keyfactory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
-        // Following cipher name has only been tested with Sun JCE Provider:
-        // the naming scheme appears idiosyncratic so may not work with others.
-        
-        Cipher keycipher = Cipher.getInstance("RSA/NONE/OAEPWithSHA1AndMGF1Padding", "Crypto");
-        keycipher.init(Cipher.ENCRYPT_MODE, key);
-        return keycipher.doFinal(plaintextbytes);
+    private void setEncryption(boolean cleartext) {
+        if (cleartext) {
+            encryption = NoEncryption.INSTANCE;
+        } else {
+            try {
+                encryption = new AesEncryption();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Can't initialize encryption", e);
+            }
+        }
     }
 
     private synchronized void stop() {
-        stpe.shutdownNow();
-        stpe = null;
-        controlsocket.close();
-        timingsocket.close();
-        controlsocket = timingsocket = null;
-        timingthread.interrupt();
-        packetqueue = null;
+        synchronized(pauselock) {
+            paused = false;
+        }
+        ring.setBlocked(true);
+        clears++;
+        replay = 0;
+        pacer.stop();
+        pacer = null;
+        ports.unregister(this);
+        controlsocket = null;
+        timingspeakers.clear();
+        controlspeakers.clear();
+        fanout.close();
+        fanout = null;
+        encryption.close();
+        encryption = null;
+        ring = null;
+        Drain d = draining.getAndSet(null);
+        if (d != null) {
+            d.complete();
+        }
         context.debug("Stopped AirtunesManager for \""+name+"\"");
     }
 
     /**
      * Add the named speaker to this set
+     * @param cleartext true if the speaker can take an unencrypted stream
      */
-    AirtunesSpeaker addSpeaker(String name, InetAddress host, int port, String password, ServiceContext context) {
+    AirtunesSpeaker addSpeaker(String name, InetAddress host, int port, String password, boolean cleartext, ServiceContext context) {
+        AirtunesSpeaker speaker = new AirtunesSpeaker(this, name, host, port, password, context);
+        StreamEncryption encryption;
+        List<AirtunesSpeaker> rekey = null;
         synchronized(speakers) {
             if (speakers.isEmpty()) {
-                start();
+                start(cleartext);
+            } else if (!cleartext && this.encryption == NoEncryption.INSTANCE) {
+                encrypt();
+                rekey = new ArrayList<AirtunesSpeaker>(started);
             }
-            AirtunesSpeaker speaker = new AirtunesSpeaker(name, host, port, password, context);
             speakers.put(name, speaker);
-            int controlport = ((InetSocketAddress)controlsocket.getLocalSocketAddress()).getPort();
-            int timingport = ((InetSocketAddress)timingsocket.getLocalSocketAddress()).getPort();
-            speaker.connect(cipherkey, cipheriv, controlport, timingport);
-            speaker.start(rtpseq, rtptime);
-            return speaker;
+            fanout.add(speaker);
+            encryption = this.encryption;
+        }
+        if (rekey != null) {
+            rekey(rekey);
+        }
+        // The handshake is done without holding the lock, so speakers joining
+        // at the same time are set up in parallel. They all RECORD from the
+        // same rtpseq/rtptime, as nothing is sent until they've all opened.
+        speaker.connect(encryption, ports.getControlPort(), ports.getTimingPort());
+        speaker.start(rtpseq, rtptime);
+        synchronized(speakers) {
+            if (speakers.get(name) == speaker) {
+                started.add(speaker);
+            }
+            encryption = this.encryption;
+        }
+        // If the stream was switched to encryption while we were connecting
+        // we weren't started, so weren't moved to the new key with the others
+        if (encryption != null) {
+            speaker.rekey(encryption, rtpseq, rtptime);
+        }
+        return speaker;
+    }
+
+    /**
+     * Switch an unencrypted stream to encryption, when a speaker that needs
+     * it joins. The speakers already started are then moved to the new key
+     * by {@link #rekey}. What's queued is packed as it's sent, so goes out
+     * encrypted, but what's kept for resending was packed in the clear, so
+     * it's dropped rather than sent to speakers expecting it encrypted.
+     */
+    private synchronized void encrypt() {
+        context.debug("Encrypting stream for \""+name+"\"");
+        setEncryption(false);
+        history.clear();
+        replay = 0;
+    }
+
+    private static synchronized ExecutorService getRekeyer() {
+        if (rekeyer == null) {
+            rekeyer = Executors.newFixedThreadPool(MAXREKEYING, new ThreadFactory() {
+                int count;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "qTunes-airtunes-rekey-"+(++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return rekeyer;
+    }
+
+    /**
+     * Announce the new key to the speakers in parallel, at most
+     * {@link #MAXREKEYING} at a time, so neither they nor the speaker
+     * being added wait on one another
+     */
+    private void rekey(List<AirtunesSpeaker> targets) {
+        for (Iterator<AirtunesSpeaker> i = targets.iterator();i.hasNext();) {
+            final AirtunesSpeaker speaker = i.next();
+            getRekeyer().execute(new Runnable() {
+                public void run() {
+                    StreamEncryption encryption = AirtunesManager.this.encryption;
+                    if (encryption != null) {
+                        speaker.rekey(encryption, rtpseq, rtptime);
+                    }
+                }
+            });
         }
     }
 
@@ -170,273 +378,532 @@ public class AirtunesManager {
      * Remove the named Speaker from this set
      */
     void removeSpeaker(AirtunesSpeaker speaker) {
+        boolean removed = false;
         synchronized(speakers) {
             for (Iterator<Map.Entry<String,AirtunesSpeaker>> i = speakers.entrySet().iterator();i.hasNext();) {
                 Map.Entry<String,AirtunesSpeaker> e = i.next();
                 if (e.getValue()==speaker) {
                     i.remove();
-                    speaker.disconnect();
+                    started.remove(speaker);
+                    timingspeakers.values().remove(speaker);
+                    controlspeakers.values().remove(speaker);
+                    fanout.remove(speaker);
+                    removed = true;
                     if (speakers.isEmpty()) {
                         stop();
                     }
                 }
             }
         }
+        if (removed) {
+            // The stream gain is left as it is: it's still at least the gain
+            // of every speaker left, so their trims are still right
+            speaker.disconnect();
+        }
     }
 
     /**
-     * iTunes uses a monotonic system clock, we don't have access to that
-     * so we're going to initialize the epch based on the first timing
-     * packet we get
+     * Return the speaker the packet came from, comparing against the timing
+     * or control address of each speaker. Found speakers are cached by host
+     * so this is a single lookup in the usual case.
      */
-    private synchronized static void initializeEpoch(long ntptime) {
-        if (epoch==0) {
-            epoch = (ntptime>>>32l) - (System.currentTimeMillis() / 1000);
+    AirtunesSpeaker findSpeaker(DatagramPacket packet, boolean timing) {
+        Map<InetAddress,AirtunesSpeaker> cache = timing ? timingspeakers : controlspeakers;
+        InetAddress address = packet.getAddress();
+        int port = packet.getPort();
+        AirtunesSpeaker speaker = cache.get(address);
+        InetSocketAddress a;
+        if (speaker != null) {
+            a = timing ? speaker.getTimingAddress() : speaker.getControlAddress();
+            if (a != null && a.getPort() == port && a.getAddress().equals(address)) {
+                return speaker;
+            }
+        }
+        for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
+            speaker = i.next();
+            a = timing ? speaker.getTimingAddress() : speaker.getControlAddress();
+            if (a != null && a.getPort() == port && a.getAddress().equals(address)) {
+                cache.put(address, speaker);
+                return speaker;
+            }
         }
+        return null;
     }
 
-    private static long toNTPTime(long ms) {
-        long secs = (ms/1000) + epoch;
-        long frac = (ms%1000) * MSECMULT;
-        return (secs << 32) + frac;
+    Collection<AirtunesSpeaker> getSpeakers() {
+        return speakers.values();
     }
 
-    private static long fromNTPTime(long ntptime) {
-        long secs = ((ntptime>>>32l) - epoch) & 0xFFFFFFFFl;
-        long msecs = (ntptime&0xFFFFFFFFl) / MSECMULT;
-        return (secs * 1000) + msecs;
+    /**
+     * Return the number of packets dropped for the speaker because
+     * it couldn't keep up, since the stream started
+     */
+    long getDropCount(AirtunesSpeaker speaker) {
+        AudioFanout fanout = this.fanout;
+        return fanout == null ? 0 : fanout.getDropCount(speaker);
     }
 
-    private static String dumpPacket(byte[] data) {
-        StringBuffer sb = new StringBuffer(data.length * 2);
-        for (int i=0;i<data.length;i++) {
-            String s = Integer.toHexString(data[i]&0xFF);
-            if (s.length()==1) sb.append('0');
-            sb.append(s);
-        }
-        return sb.toString();
+    /**
+     * Return the number of packets that couldn't be sent to the
+     * speaker, since the stream started
+     */
+    long getFailureCount(AirtunesSpeaker speaker) {
+        AudioFanout fanout = this.fanout;
+        return fanout == null ? 0 : fanout.getFailureCount(speaker);
     }
 
-    private Thread createTimingThread() {
-        return new Thread("qTunes-airtunes-"+name+"-timer") {
-            public void run() {
-                DatagramSocket socket;
-                byte[] data = new byte[32];
-                DatagramPacket packet = new DatagramPacket(data, 32);
-                while ((socket=timingsocket)!=null) {
-                    try {
-                        socket.receive(packet);
-                        long receivetime = System.currentTimeMillis();
-                        if (data[0]==(byte)0x80 && data[1]==(byte)0xd2) {
-//                            System.out.println("TIMER rx "+dumpPacket(data));
-                            long ntptime = readLong(data, 24);
-                            initializeEpoch(ntptime);
-                            data[1] = (byte)0xd3;
-                            System.arraycopy(data, 24, data, 8, 8);
-                            writeLong(toNTPTime(receivetime), data, 16);
-                            for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
-                                AirtunesSpeaker speaker = i.next();
-                                if (packet.getSocketAddress().equals(speaker.getTimingAddress())) {
-                                    speaker.touch();
-                                    break;
-                                }
-                            }
-                            writeLong(toNTPTime(System.currentTimeMillis()), data, 24);
-//                            System.out.println("TIMER tx "+dumpPacket(data));
-                            socket.send(packet);
-                        }
-                    } catch (Exception e) {
-                        if (!e.getMessage().equals("Socket closed")) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
-        };
+    PacketHistory getHistory() {
+        return history;
     }
 
-    private static void writeInt(int val, byte[] buf, int off) {
-        buf[off+0] = (byte)(val>>24);
-        buf[off+1] = (byte)(val>>16);
-        buf[off+2] = (byte)(val>>8);
-        buf[off+3] = (byte)(val>>0);
+    /**
+     * Return the sequence number of the next packet to be sent
+     */
+    int getRtpSeq() {
+        return rtpseq;
     }
 
-    private static void writeLong(long val, byte[] buf, int off) {
-        buf[off+0] = (byte)(val>>>56);
-        buf[off+1] = (byte)(val>>>48);
-        buf[off+2] = (byte)(val>>>40);
-        buf[off+3] = (byte)(val>>>32);
-        buf[off+4] = (byte)(val>>>24);
-        buf[off+5] = (byte)(val>>>16);
-        buf[off+6] = (byte)(val>>>8);
-        buf[off+7] = (byte)(val>>>0);
+    /**
+     * Return the timestamp of the next packet to be sent
+     */
+    int getRtpTime() {
+        return rtptime;
     }
 
-    private static long readLong(byte[] buf, int off) {
-        return ((long)readInt(buf, off)<<32) + (readInt(buf, off+4)&0xFFFFFFFFl);
+    /**
+     * Return the latency given to the speakers in the sync packets, in samples
+     */
+    private int getSpeakerLatency() {
+        int latency = 0;
+        for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
+            latency = Math.max(latency, i.next().getNetworkLatency());
+        }
+        return latency;
     }
 
-    private static long readInt(byte[] buf, int i) {
-        return ((buf[i]&0xFF) << 24) + ((buf[i+1]&0xFF) << 16) + ((buf[i+2]&0xFF) << 8) + (buf[i+3]&0xFF);
+    /**
+     * Return the number of samples between a frame being passed to
+     * {@link #sendAudioPacket} and it being heard, once the packet queue
+     * has filled: the length of the queue plus the speaker latency
+     */
+    int getLatency() {
+        PacketRing ring = this.ring;
+        return (ring == null ? 0 : ring.capacity()) * PACKETSIZE + getSpeakerLatency();
     }
 
-    private void sendSyncPacket(boolean first) throws IOException {
-        byte[] data = new byte[20];
-        DatagramPacket packet = new DatagramPacket(data, data.length);
-        data[0] = (byte)(first ? 0x90 : 0x80);
-        data[1] = (byte)0xd4;
-        data[2] = (byte)0;
-        data[3] = (byte)0x07;
-        writeInt(rtptime, data, 16);
-        writeLong(toNTPTime(System.currentTimeMillis()), data, 8);
+    /**
+     * Send a sync packet, telling the speakers that the next packet
+     * is to be played at the time it was due to be sent plus the latency.
+     *
+     * Every speaker is given the same latency - the largest Audio-Latency
+     * plus half the round trip of any of them - so they all play in step.
+     * If the round trip to any speaker is jittery we sync more often.
+     * @param deadline the time the next packet was due, from System.nanoTime()
+     */
+    private void sendSyncPacket(boolean first, long deadline) throws IOException {
+        int latency = getSpeakerLatency();
+        long jitter = 0;
+        for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
+            jitter = Math.max(jitter, i.next().getTiming().getJitter());
+        }
+        synclatency = latency;
+        syncfrequency = jitter > MAXJITTER ? FASTSYNCFREQUENCY : SYNCFREQUENCY;
 
+        long ntptime = clock.toNTPTime(deadline);
         for (Iterator<AirtunesSpeaker> i = speakers.values().iterator();i.hasNext();) {
             AirtunesSpeaker speaker = i.next();
-            packet.setSocketAddress(speaker.getControlAddress());
-            writeInt(rtptime - speaker.getLatency(), data, 4);
-//            System.out.println("SYNC  tx "+dumpPacket(data));
-            controlsocket.send(packet);
+            InetSocketAddress address = speaker.getControlAddress();
+            if (address != null) {
+                speaker.getSyncPacket().send(controlsocket, address, first, rtptime - latency, ntptime, rtptime);
+            }
         }
     }
 
     /**
-     * Clear anything in the packet queue and stop playing immediately
+     * Clear anything in the packet queue and stop playing immediately.
+     * The queue is cleared before this returns, but the FLUSH requests
+     * to the speakers are sent in the background - the Future returned
+     * completes when they've all been answered. Audio written after this
+     * returns is queued, but not sent until then, so the FLUSH can't
+     * discard the start of it.
      */
-    public synchronized void clear() {
-        packetqueue.clear();
+    public synchronized Future<Void> clear() {
+        final Promise<Void> promise = new Promise<Void>();
+        if (ring == null) {
+            promise.set(null);
+            return promise;
+        }
+        ring.clear();
+        clears++;
+        pacer.reset();
         packetcount = 0;
-        if (speakerstarted) {
-            speakerstarted = false;
-            for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
-                AirtunesSpeaker speaker = j.next();
-                speaker.stop(rtpseq, rtptime);
-                speaker.getContext().fireEvent("speakerStopped", null);
+        replay = 0;
+        Drain d = draining.getAndSet(null);
+        if (d != null) {
+            d.complete();
+        }
+        if (!speakerstarted) {
+            promise.set(null);
+            return promise;
+        }
+        speakerstarted = false;
+        flushes.incrementAndGet();
+        final int seq = rtpseq, time = rtptime;
+        final List<AirtunesSpeaker> flushed = new ArrayList<AirtunesSpeaker>(speakers.values());
+        for (Iterator<AirtunesSpeaker> j = flushed.iterator();j.hasNext();) {
+            j.next().getContext().fireEvent("speakerStopped", null);
+        }
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    for (Iterator<AirtunesSpeaker> j = flushed.iterator();j.hasNext();) {
+                        j.next().stop(seq, time);
+                    }
+                } finally {
+                    flushes.decrementAndGet();
+                    promise.set(null);
+                }
             }
+        });
+        return promise;
+    }
+
+    /**
+     * Pause the stream, keeping everything queued. The sender is stopped
+     * before this returns; the speakers are flushed in the background.
+     *
+     * The packets already sent that the speakers haven't played yet - those
+     * sent within the sync latency - are flushed too, so the sound stops at
+     * once. The position is wound back to the first of them, and on
+     * {@link #resume} they're sent again from the history before the queue.
+     * Writing while paused doesn't block once the queue is full - the frame
+     * is held back and sent when resumed, and the writer should stop.
+     */
+    public void pause() {
+        synchronized(pauselock) {
+            final Pacer pacer = this.pacer;
+            final PacketRing ring = this.ring;
+            if (paused || pacer == null || ring == null) {
+                return;
+            }
+            paused = true;
+            ring.setBlocked(true);
+            pacer.pause();
+            // The sender is idle, so its state can be changed here
+            long unplayed = (playedby - System.nanoTime()) / Pacer.toNanos(PACKETSIZE);
+            // Any replay not yet finished carries on from here, and the
+            // history has to hold both
+            int n = (int)Math.max(0, Math.min(unplayed, Math.min(packetcount, HISTORYLENGTH - replay)));
+            rtpseq -= n;
+            rtptime -= n * PACKETSIZE;
+            replay += n;
+            final int seq = rtpseq, time = rtptime;
+            final List<AirtunesSpeaker> targets = new ArrayList<AirtunesSpeaker>(speakers.values());
+            execute(new Runnable() {
+                public void run() {
+                    for (Iterator<AirtunesSpeaker> j = targets.iterator();j.hasNext();) {
+                        j.next().pause(seq, time);
+                    }
+                }
+            });
         }
     }
 
     /**
-     * Drain the queue until all playing has finished
+     * Resume a paused stream. The speakers are sent RECORD from the position
+     * the stream was paused at, and then the sender is restarted. Both are
+     * done in the background, after any FLUSH from {@link #pause}.
      */
-    public synchronized void drain() {
-        while (!packetqueue.isEmpty()) {
-            synchronized(packetqueue) {
-                try {
-                    packetqueue.wait();
-                } catch (InterruptedException e) {}
+    public void resume() {
+        synchronized(pauselock) {
+            final Pacer pacer = this.pacer;
+            final PacketRing ring = this.ring;
+            if (!paused || pacer == null || ring == null) {
+                return;
             }
+            paused = false;
+            ring.setBlocked(false);
+            packetcount = 0;
+            final int seq = rtpseq, time = rtptime;
+            final List<AirtunesSpeaker> targets = new ArrayList<AirtunesSpeaker>(speakers.values());
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (Iterator<AirtunesSpeaker> j = targets.iterator();j.hasNext();) {
+                            j.next().resume(seq, time);
+                        }
+                    } finally {
+                        pacer.resume();
+                    }
+                }
+            });
         }
-        packetcount = 0;
-        if (speakerstarted) {
-            for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
-                AirtunesSpeaker speaker = j.next();
-                speaker.getContext().fireEvent("speakerStopped", null);
+    }
+
+    /**
+     * Return a Future that completes when everything written so far has
+     * been played by the speakers - that is, when the last packet has been
+     * sent and the latency the speakers were given in the sync packets has
+     * elapsed. Doesn't block, and doesn't stop more audio being written.
+     */
+    public synchronized Future<Void> drain() {
+        if (ring == null) {
+            Promise<Void> promise = new Promise<Void>();
+            promise.set(null);
+            return promise;
+        }
+        final long mark = ring.getHead();
+        Drain d = draining.get();
+        if (d != null && d.mark == mark) {
+            return d.promise;
+        }
+        Drain next = new Drain(mark, d);
+        if (!draining.compareAndSet(d, next)) {
+            // The sender completed d in the meantime
+            next = new Drain(mark, null);
+            draining.set(next);
+        }
+        return next.promise;
+    }
+
+    /**
+     * Called by the sender when every packet before the mark of the pending
+     * drain has been sent. When those packets have played, the drain is
+     * completed from the control thread.
+     */
+    private void checkDrain(PacketRing ring) {
+        final Drain d = draining.get();
+        if (d == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!d.due) {
+            if (!ring.isConsumed(d.mark)) {
+                return;
             }
+            d.end = playedby - now > 0 ? playedby : now;
+            d.due = true;
+        }
+        if (now - d.end >= 0 && draining.compareAndSet(d, null)) {
+            if (ring.isConsumed(ring.getHead())) {
+                packetcount = 0;
+            }
+            execute(new Runnable() {
+                public void run() {
+                    drained(d);
+                }
+            });
         }
-        speakerstarted = false;
     }
 
-    private Runnable createSender() {
-        return new Runnable() {
-            byte[] b = new byte[PACKETSIZE*4 + 15];
-            DatagramPacket packet = new DatagramPacket(b, b.length);
-            public void run() {
-                byte[] data;
-                ServiceContext context = null;
-                if ((data=packetqueue.poll())!=null) {
+    private void drained(Drain d) {
+        try {
+            synchronized(this) {
+                // If more has been written since the drain, the stream carries on
+                if (speakerstarted && ring != null && ring.getHead() == d.mark) {
+                    speakerstarted = false;
+                    for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
+                        j.next().getContext().fireEvent("speakerStopped", null);
+                    }
+                }
+            }
+        } finally {
+            d.complete();
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            control.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private Pacer.Source createSender() {
+        return new Pacer.Source() {
+            public boolean send(long deadline) {
+                final PacketRing ring = AirtunesManager.this.ring;
+                ByteBuffer frame;
+                if (flushes.get() > 0) {
+                    // Hold back until the speakers have been flushed
+                    return false;
+                } else if (replay > 0) {
+                    return sendReplay(deadline);
+                } else if (ring != null && (frame=ring.poll())!=null) {
                     try {
-                        if ((packetcount % SYNCFREQUENCY)==0) {
-                            sendSyncPacket(packetcount==0);
-                        }
-                        data[2] = (byte)(rtpseq>>8);
-                        data[3] = (byte)(rtpseq);
-                        writeInt(rtptime, data, 4);
-                        packet.setData(data);
-                        for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
-                            AirtunesSpeaker speaker = j.next();
-                            if (speaker.isConnected()) {
-                                packet.setSocketAddress(speaker.getServerAddress());
-                                context = speaker.getContext();
-                                speaker.getAudioSocket().send(packet);
-                            }
+                        if (packetcount == 0 || packetcount >= nextsync) {
+                            sendSyncPacket(packetcount==0, deadline);
+                            nextsync = packetcount + syncfrequency;
                         }
-                        rtpseq++;
-                        rtptime += PACKETSIZE;
-                        packetcount++;
                     } catch (IOException e) {
-                        if (context!=null) {
-                            context.warn("Audio send failed", e);
-                        } else {
-                            e.printStackTrace();
+                        context.warn("Sync send failed", e);
+                    }
+                    StreamEncryption encryption = AirtunesManager.this.encryption;
+                    ByteBuffer databuffer = pack(frame, encryption);
+                    ring.release();
+                    if (databuffer != null) {
+                        databuffer.putShort(2, (short)rtpseq);
+                        databuffer.putInt(4, rtptime);
+                        fanout.send(databuffer);
+                        // Not if it was packed with a key that's just been replaced
+                        if (encryption == AirtunesManager.this.encryption) {
+                            history.put(rtpseq, databuffer);
                         }
                     }
+                    rtpseq++;
+                    rtptime += PACKETSIZE;
+                    packetcount++;
+                    playedby = deadline + Pacer.toNanos(PACKETSIZE + synclatency);
+                    checkDrain(ring);
+                    return true;
                 } else {
-                    synchronized(packetqueue) {
-                        packetqueue.notifyAll();
+                    if (ring != null) {
+                        checkDrain(ring);
                     }
+                    return false;
                 }
             }
         };
     }
 
+    /**
+     * Send the next of the packets being sent again after a pause. They
+     * go out exactly as they did the first time, from the history.
+     */
+    private boolean sendReplay(long deadline) {
+        try {
+            if (packetcount == 0 || packetcount >= nextsync) {
+                sendSyncPacket(packetcount==0, deadline);
+                nextsync = packetcount + syncfrequency;
+            }
+        } catch (IOException e) {
+            context.warn("Sync send failed", e);
+        }
+        replaybuffer.clear();
+        if (history.get(rtpseq, replaybuffer)) {
+            replaybuffer.flip();
+            fanout.send(replaybuffer);
+        }
+        replay--;
+        rtpseq++;
+        rtptime += PACKETSIZE;
+        packetcount++;
+        playedby = deadline + Pacer.toNanos(PACKETSIZE + synclatency);
+        return true;
+    }
+
     //-----------------------------------------------------------------------------------
-    // Profiling shows this is where the load is. Preallocate what we can - we know
-    // length of queue so we can allocate enough (plus a couple just in case) in advance.
-    // Certain fields of each packet are fixed, so we can set those in start(). Makes
-    // quite a difference to garbage collection, which adds latency.
+    // Profiling shows this is where the load is. Preallocate what we can - frames
+    // are copied into the slots of the ring the sender reads from, and a slot isn't
+    // reused until the sender has finished with it. The sender applies the gain and
+    // packs each frame into one packet buffer of its own, certain fields of which
+    // are fixed, so we can set those in start(). Makes quite a difference to
+    // garbage collection, which adds latency.
     //-----------------------------------------------------------------------------------
 
-    private byte[][] packetdata = new byte[QUEUELENGTH+5][PACKETSIZE*4 + 15];
-    private int packetdatahead;
-    private byte[] cipherinput = new byte[1408];
+    private static final int FIRST = 1, BIGENDIAN = 2;      // flags after each frame in the ring
+
+    private volatile PacketRing ring;
+    private final FramePacker packer = new FramePacker();                                   // sender only
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(PACKETSIZE*4 + 15);          // sender only
+    private volatile boolean compressed;
+    private PacketHistory history = new PacketHistory(HISTORYLENGTH, PACKETSIZE*4 + 15);
+    private final GainStage gainstage = new GainStage();
+    private final Object gainlock = new Object();
+    private volatile boolean softgain = true;
+    private volatile int clears;                                    // bumped under this
+    private final byte[] heldbuf = new byte[FramePacker.FRAMESIZE]; // writer only
+    private boolean held, heldbigendian;                            // writer only
+    private int heldclears;                                         // writer only
 
     /**
-     * Send an audio packet to the speakers
+     * Send an audio packet to the speakers. Called from one thread at a time.
+     * If the queue is full while paused the packet is held back and sent
+     * before the next one, and if a packet is already held this one is lost.
      */
-    public synchronized void sendAudioPacket(byte[] buf, int off, int len, boolean bigendian) {
+    public void sendAudioPacket(byte[] buf, int off, int len, boolean bigendian) {
         if (len != PACKETSIZE*4) {
             throw new IllegalArgumentException("length must be "+(PACKETSIZE*4));
         }
+        if (held) {
+            if (!sendFrame(heldbuf, 0, heldbigendian, heldclears)) {
+                return;
+            }
+            held = false;
+        }
+        int clears = this.clears;
+        if (!sendFrame(buf, off, bigendian, clears)) {
+            System.arraycopy(buf, off, heldbuf, 0, len);
+            heldbigendian = bigendian;
+            heldclears = clears;
+            held = true;
+        }
+    }
 
-        final byte[] data = packetdata[packetdatahead];
-        packetdatahead = (packetdatahead+1)%packetdata.length;
-
-        // Rest of data and cipherinput was initialized in start()
-        data[1] = (byte)(packetcount==0 ? 0xe0 : 0x60);
-
-        byte v1 = 1;
-        int highbyte = bigendian ? 0 : 1;
-        int i;
-        for (i=0;i<len - 2;i+=2) {
-            byte v2 = buf[off + i + highbyte];
-            cipherinput[i + 2] = (byte)(((v2&0x80) >> 7) | (v1 << 1));
-            v1 = buf[off + i + (1 - highbyte)];
-            cipherinput[i + 3] = (byte)(((v1&0x80) >> 7) | (v2 << 1));
+    /**
+     * Copy a frame into the next slot of the ring and publish it. The slot is
+     * claimed before taking the lock, so waiting for room holds up no-one
+     * else, and the frame is dropped if the queue was cleared or the stream
+     * stopped in the meantime. Return false if the ring is full and blocked.
+     */
+    private boolean sendFrame(byte[] buf, int off, boolean bigendian, int clears) {
+        final PacketRing ring = this.ring;
+        if (ring == null) {
+            return true;
         }
+        final ByteBuffer databuffer;
         try {
-            cipher.doFinal(cipherinput, 0, cipherinput.length, data, 12);
-        } catch (Exception e) {
+            databuffer = ring.claim();
+        } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        byte v2 = buf[off + i + highbyte];
-        data[data.length - 3] = (byte)(((v2&0x80) >> 7) | (v1 << 1));
-        v1 = buf[off + i + (1 - highbyte)];
-        data[data.length - 2] = (byte)(((v1&0x80) >> 7) | (v2 << 1));
-        data[data.length - 1] = (byte)(v1<<1);
+        if (databuffer == null) {
+            return false;
+        }
 
-        if (!speakerstarted) {
-            speakerstarted = true;
-            for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
-                AirtunesSpeaker speaker = j.next();
-                speaker.getContext().fireEvent("speakerStarted", null);
+        databuffer.clear();
+        databuffer.put(buf, off, FramePacker.FRAMESIZE);
+        synchronized(this) {
+            if (ring != this.ring || clears != this.clears) {
+                return true;
             }
+            databuffer.put((byte)((speakerstarted ? 0 : FIRST) | (bigendian ? BIGENDIAN : 0)));
+            if (!speakerstarted) {
+                speakerstarted = true;
+                for (Iterator<AirtunesSpeaker> j = speakers.values().iterator();j.hasNext();) {
+                    AirtunesSpeaker speaker = j.next();
+                    speaker.getContext().fireEvent("speakerStarted", null);
+                }
+            }
+            ring.publish();
         }
+        return true;
+    }
+
+    /**
+     * Apply the stream gain to a frame from the ring and pack it into the
+     * packet buffer, returning the packet, or null if it can't be encrypted.
+     * Sender thread only.
+     */
+    private ByteBuffer pack(ByteBuffer frame, StreamEncryption encryption) {
+        int flags = frame.get(FramePacker.FRAMESIZE);
+        boolean bigendian = (flags & BIGENDIAN) != 0;
+        gainstage.apply(frame, 0, bigendian);
+        packer.setCompressed(compressed);
+
+        // Rest of header was initialized in start()
+        packet.put(1, (byte)((flags & FIRST) != 0 ? 0xe0 : 0x60));
+        packet.clear();
+        packet.position(12);
         try {
-            packetqueue.put(data);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            packer.pack(frame, 0, bigendian, encryption.getCipher(), packet);
+        } catch (Exception e) {
+            context.warn("Can't pack audio packet", e);
+            return null;
         }
+        packet.flip();
+        return packet;
     }
 
 }
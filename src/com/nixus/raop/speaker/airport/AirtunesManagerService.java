@@ -17,8 +17,11 @@ public class AirtunesManagerService implements Service {
 
     public void startService(ServiceContext context) {
         this.context = context;
+        AesEncryption.prepare();
         speakers = new ArrayList<SpeakerImpl>();
-        manager = new AirtunesManager(context.getProperty("playername"), context);
+        manager = new AirtunesManager(context.getProperty("playername"), context, AirtunesPortService.getInstance(context));
+        manager.setCompressed("alac".equals(context.getProperty("compression")));
+        manager.setSoftGain(!"false".equals(context.getProperty("softgain")));
     }
 
     public void stopService(ServiceContext context) {
@@ -53,7 +56,7 @@ public class AirtunesManagerService implements Service {
     }
 
     public Map<String,Object> reportState() {
-        return null;
+        return manager == null ? null : manager.reportState();
     }
 
 }
@@ -0,0 +1,316 @@
+package com.nixus.raop.speaker.airport;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.nixus.raop.core.Service;
+import com.nixus.raop.core.ServiceContext;
+
+/**
+ * Owns the control and timing ports shared by every AirtunesManager in the
+ * process. Packets arriving on either port are routed by source address to
+ * the manager that owns the speaker that sent them, so adding a player
+ * costs no new sockets or threads. The RTSP sessions of the speakers are
+ * watched over by a {@link SessionMonitor}.
+ */
+public class AirtunesPortService implements Service {
+
+    private static final int FIRSTPORT = 6001, PACKETSIZE = 352;
+    private static final int TIMINGINTERVAL = 2000;
+
+    private ServiceContext context;
+    private volatile DatagramSocket controlsocket, timingsocket;
+    private Thread timingthread, controlthread;
+    private SessionMonitor monitor;
+    private final List<AirtunesManager> managers = new CopyOnWriteArrayList<AirtunesManager>();
+    private final Map<InetAddress,AirtunesManager> timingroutes = new ConcurrentHashMap<InetAddress,AirtunesManager>();
+    private final Map<InetAddress,AirtunesManager> controlroutes = new ConcurrentHashMap<InetAddress,AirtunesManager>();
+    private final NtpClock clock = NtpClock.getInstance();
+    private volatile long unrouted;
+
+    AirtunesPortService() {
+    }
+
+    /**
+     * Return the AirtunesPortService for the process, creating it if necessary
+     */
+    static AirtunesPortService getInstance(ServiceContext context) {
+        synchronized(AirtunesPortService.class) {
+            AirtunesPortService service = context.getService(AirtunesPortService.class, "name='airportports'");
+            if (service == null) {
+                Map<String,String> props = new LinkedHashMap<String,String>();
+                props.put("name", "airportports");
+                ServiceContext newcontext = context.addService(new Class<?>[] { AirtunesPortService.class }, new AirtunesPortService(), props, false);
+                newcontext.start();
+                service = (AirtunesPortService)newcontext.getService();
+            }
+            return service;
+        }
+    }
+
+    public void startService(ServiceContext context) {
+        this.context = context;
+        int controlport = FIRSTPORT;
+        do {
+            try {
+                controlsocket = new DatagramSocket(controlport);
+            } catch (Exception e) {
+                controlport++;
+            }
+        } while (controlsocket == null && controlport < 65000);
+        int timingport = controlport + 1;
+        do {
+            try {
+                timingsocket = new DatagramSocket(timingport);
+            } catch (Exception e) {
+                timingport++;
+            }
+        } while (timingsocket == null && timingport < 65000);
+
+        if (controlsocket==null || timingsocket==null) {
+            throw new IllegalStateException("Can't open ports");
+        }
+        timingthread = createTimingThread();
+        timingthread.start();
+        controlthread = createControlThread();
+        controlthread.start();
+        monitor = new SessionMonitor(managers);
+        monitor.start();
+        context.debug("Listening for control on "+controlport+", timing on "+timingport);
+    }
+
+    public void stopService(ServiceContext context) {
+        DatagramSocket c = controlsocket, t = timingsocket;
+        controlsocket = timingsocket = null;
+        if (c != null) {
+            c.close();
+        }
+        if (t != null) {
+            t.close();
+        }
+        timingthread.interrupt();
+        controlthread.interrupt();
+        monitor.stop();
+        managers.clear();
+        timingroutes.clear();
+        controlroutes.clear();
+    }
+
+    public ServiceContext getContext() {
+        return context;
+    }
+
+    public Map<String,Object> reportState() {
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("controlport", getControlPort());
+        map.put("timingport", getTimingPort());
+        map.put("managers", managers.size());
+        map.put("unrouted", unrouted);
+        return map;
+    }
+
+    DatagramSocket getControlSocket() {
+        return controlsocket;
+    }
+
+    int getControlPort() {
+        DatagramSocket socket = controlsocket;
+        return socket == null ? 0 : socket.getLocalPort();
+    }
+
+    int getTimingPort() {
+        DatagramSocket socket = timingsocket;
+        return socket == null ? 0 : socket.getLocalPort();
+    }
+
+    void register(AirtunesManager manager) {
+        if (!managers.contains(manager)) {
+            managers.add(manager);
+        }
+    }
+
+    void unregister(AirtunesManager manager) {
+        managers.remove(manager);
+        timingroutes.values().remove(manager);
+        controlroutes.values().remove(manager);
+    }
+
+    /**
+     * Return the speaker the packet came from, or null if it's not from one
+     * of ours. The manager for each host is cached so this is normally a
+     * single lookup.
+     */
+    private AirtunesSpeaker route(DatagramPacket packet, boolean timing) {
+        Map<InetAddress,AirtunesManager> routes = timing ? timingroutes : controlroutes;
+        InetAddress address = packet.getAddress();
+        AirtunesManager manager = routes.get(address);
+        AirtunesSpeaker speaker;
+        if (manager != null && (speaker=manager.findSpeaker(packet, timing)) != null) {
+            return speaker;
+        }
+        for (Iterator<AirtunesManager> i = managers.iterator();i.hasNext();) {
+            manager = i.next();
+            if ((speaker=manager.findSpeaker(packet, timing)) != null) {
+                routes.put(address, manager);
+                return speaker;
+            }
+        }
+        unrouted++;
+        return null;
+    }
+
+    /**
+     * The timing thread answers timing requests from the speakers, and
+     * every couple of seconds sends each speaker a timing request of its
+     * own to measure the round trip. The round trip is also measured from
+     * the speakers' requests, for those that never answer ours - see
+     * {@link SpeakerTiming}.
+     */
+    private Thread createTimingThread() {
+        return new Thread("qTunes-airtunes-timer") {
+            public void run() {
+                DatagramSocket socket;
+                byte[] data = new byte[32];
+                DatagramPacket packet = new DatagramPacket(data, 32);
+                byte[] requestdata = new byte[32];
+                DatagramPacket request = new DatagramPacket(requestdata, 32);
+                requestdata[0] = (byte)0x80;
+                requestdata[1] = (byte)0xd2;
+                requestdata[3] = (byte)0x07;
+                long nextrequest = System.nanoTime();
+                while ((socket=timingsocket)!=null) {
+                    try {
+                        if (clock.isAligned() && System.nanoTime() - nextrequest >= 0) {
+                            for (Iterator<AirtunesManager> i = managers.iterator();i.hasNext();) {
+                                for (Iterator<AirtunesSpeaker> j = i.next().getSpeakers().iterator();j.hasNext();) {
+                                    AirtunesSpeaker speaker = j.next();
+                                    InetSocketAddress address = speaker.getTimingAddress();
+                                    if (address != null) {
+                                        request.setSocketAddress(address);
+                                        writeLong(clock.now(), requestdata, 24);
+                                        socket.send(request);
+                                        speaker.getTiming().requested();
+                                    }
+                                }
+                            }
+                            nextrequest = System.nanoTime() + TIMINGINTERVAL * 1000000l;
+                        }
+                        packet.setLength(data.length);
+                        socket.setSoTimeout(TIMINGINTERVAL);
+                        socket.receive(packet);
+                        long receivetime = System.nanoTime();
+                        if (data[0]==(byte)0x80 && data[1]==(byte)0xd2) {
+                            long origin = readLong(data, 8), received = readLong(data, 16), sent = readLong(data, 24);
+                            clock.align(sent);
+                            data[1] = (byte)0xd3;
+                            System.arraycopy(data, 24, data, 8, 8);
+                            writeLong(clock.toNTPTime(receivetime), data, 16);
+                            AirtunesSpeaker speaker = route(packet, true);
+                            if (speaker != null) {
+                                speaker.touch();
+                                speaker.getTiming().peerRequested(origin, received, sent, clock.toNTPTime(receivetime));
+                            }
+                            long now = clock.now();
+                            writeLong(now, data, 24);
+                            socket.send(packet);
+                            if (speaker != null) {
+                                speaker.getTiming().replied(now);
+                            }
+                        } else if (data[0]==(byte)0x80 && data[1]==(byte)0xd3) {
+                            AirtunesSpeaker speaker = route(packet, true);
+                            if (speaker != null) {
+                                speaker.getTiming().update(readLong(data, 8), readLong(data, 16), readLong(data, 24), clock.toNTPTime(receivetime));
+                            }
+                        }
+                    } catch (SocketTimeoutException e) {
+                    } catch (Exception e) {
+                        if (timingsocket != null) {
+                            context.warn("Timing packet failed", e);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * The control thread answers retransmit requests from the speakers, for
+     * packets they've missed, from the history of packets sent by their manager.
+     */
+    private Thread createControlThread() {
+        return new Thread("qTunes-airtunes-control") {
+            public void run() {
+                DatagramSocket socket;
+                byte[] data = new byte[32];
+                DatagramPacket packet = new DatagramPacket(data, 32);
+                byte[] resenddata = new byte[4 + PACKETSIZE*4 + 15];
+                ByteBuffer resendbuffer = ByteBuffer.wrap(resenddata);
+                DatagramPacket resendpacket = new DatagramPacket(resenddata, resenddata.length);
+                resenddata[0] = (byte)0x80;
+                resenddata[1] = (byte)0xd6;
+                resenddata[2] = 0;
+                resenddata[3] = 1;
+                while ((socket=controlsocket)!=null) {
+                    try {
+                        packet.setLength(data.length);
+                        socket.receive(packet);
+                        if (data[0]==(byte)0x80 && data[1]==(byte)0xd5 && packet.getLength() >= 8) {
+                            int seq = ((data[4]&0xFF)<<8) | (data[5]&0xFF);
+                            int count = ((data[6]&0xFF)<<8) | (data[7]&0xFF);
+                            AirtunesSpeaker speaker = route(packet, false);
+                            if (speaker != null) {
+                                PacketHistory history = speaker.getManager().getHistory();
+                                resendpacket.setSocketAddress(packet.getSocketAddress());
+                                int sent = 0;
+                                for (int i=0;i<count;i++) {
+                                    resendbuffer.clear();
+                                    resendbuffer.position(4);
+                                    if (history.get(seq + i, resendbuffer)) {
+                                        resendpacket.setLength(resendbuffer.position());
+                                        socket.send(resendpacket);
+                                        sent++;
+                                    }
+                                }
+                                speaker.resent(count, sent);
+                            }
+                        }
+                    } catch (Exception e) {
+                        if (controlsocket != null) {
+                            context.warn("Control packet failed", e);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static void writeLong(long val, byte[] buf, int off) {
+        buf[off+0] = (byte)(val>>>56);
+        buf[off+1] = (byte)(val>>>48);
+        buf[off+2] = (byte)(val>>>40);
+        buf[off+3] = (byte)(val>>>32);
+        buf[off+4] = (byte)(val>>>24);
+        buf[off+5] = (byte)(val>>>16);
+        buf[off+6] = (byte)(val>>>8);
+        buf[off+7] = (byte)(val>>>0);
+    }
+
+    private static long readLong(byte[] buf, int off) {
+        return (readInt(buf, off)<<32) + (readInt(buf, off+4)&0xFFFFFFFFl);
+    }
+
+    private static long readInt(byte[] buf, int i) {
+        return ((buf[i]&0xFF) << 24) + ((buf[i+1]&0xFF) << 16) + ((buf[i+2]&0xFF) << 8) + (buf[i+3]&0xFF);
+    }
+
+}
@@ -1,13 +1,8 @@
 package com.nixus.raop.speaker.airport;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.security.SecureRandom;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
@@ -16,6 +11,10 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.nixus.raop.core.ServiceContext;
 
@@ -25,23 +24,37 @@ import com.nixus.raop.core.ServiceContext;
 
 class AirtunesSpeaker {
 
-    private static final int VALIDITY = 9000, EXPIRE = 3000;
+    private static final int VALIDITY = 9000, EXPIRE = 3000, TIMEOUT = 5000;
 
-    private String cipherkey, cipheriv;
+    private volatile StreamEncryption encryption;
     private int timingport, controlport;
     private volatile Exception error;
     private ServiceContext context;
-    private volatile int touch;
-    private InetSocketAddress artsp, aserver, atiming, acontrol;
-    private DatagramSocket audio;
-    private Socket rtsp;
+    private final AtomicInteger touch = new AtomicInteger();     // seconds, 0 if not connected
+    private final AtomicBoolean rejoining = new AtomicBoolean();
+    private volatile Future<RtspConnection.Response> keepalive;
+    private volatile long keepalivetime;
+    private InetSocketAddress artsp;
+    private final AtomicReference<SpeakerSession> session = new AtomicReference<SpeakerSession>(SpeakerSession.CLOSED);
+    private RtspConnection rtsp;
     private String name, jacktype, servertype, clientsessionid;
     private InetAddress host;
     private int cseq, latency;
     private Map<String,String> globalheaders;
-    private float gain = - 123;
-
-    AirtunesSpeaker(String name, InetAddress host, int port, String password, ServiceContext context) {
+    private volatile float gain = - 123;
+    private volatile boolean gainset;
+    private float sentgain = Float.NaN;     // guarded by this
+    private volatile float requestedgain;
+    private volatile boolean requested;
+    private RtspConnection keepaliveconnection;
+    private final DecimalFormat gainformat = new DecimalFormat("#0.000000", new DecimalFormatSymbols(Locale.ENGLISH));   // only used when synchronized
+    private volatile long resendrequests, resends;
+    private final AirtunesManager manager;
+    private final SpeakerTiming timing = new SpeakerTiming();
+    private final SyncPacket syncpacket = new SyncPacket();
+
+    AirtunesSpeaker(AirtunesManager manager, String name, InetAddress host, int port, String password, ServiceContext context) {
+        this.manager = manager;
         this.artsp = new InetSocketAddress(host, port);
         this.host = host;
         this.name = name;
@@ -49,14 +62,29 @@ class AirtunesSpeaker {
         this.context = context;
     }
 
+    /**
+     * Note that we've heard from the speaker. Has no effect if the
+     * session has been invalidated.
+     */
     void touch() {
-        touch = Math.max(touch, (int)(System.currentTimeMillis() / 1000));
+        final int now = (int)(System.currentTimeMillis() / 1000);
+        int t;
+        while ((t=touch.get()) != 0 && t < now && !touch.compareAndSet(t, now));
+    }
+
+    AirtunesManager getManager() {
+        return manager;
+    }
+
+    SpeakerTiming getTiming() {
+        return timing;
     }
 
     private void setError(Exception e) {
         this.error = e;
         if (this.error !=null) {
             invalidate();
+            setState(SpeakerSession.State.FAILED);
             context.warn("Speaker Error", e);
             context.fireEvent("speakerError", new Object[] { "exception", e });
         }
@@ -70,19 +98,36 @@ class AirtunesSpeaker {
         return context;
     }
 
-    synchronized boolean isConnected() {
-        if ((System.currentTimeMillis() - EXPIRE) / 1000 > touch) {
-            invalidate();
-            return false;
-        } else {
-            return true;
-        }
+    /**
+     * Return true if we've heard from the speaker recently. Called for every
+     * packet, so doesn't lock: a session that has gone quiet is rebuilt by
+     * the {@link SessionMonitor}.
+     */
+    boolean isConnected() {
+        return (System.currentTimeMillis() - EXPIRE) / 1000 <= touch.get();
     }
 
-    synchronized void ensureConnected() {
-        if (error == null && !isConnected()) {
-            reconnect();
-        }
+    /**
+     * Return true if this speaker should have a session, ie it's been
+     * connected and not disconnected, and hasn't failed
+     */
+    boolean isActive() {
+        SpeakerSession.State state = session.get().state;
+        return state != SpeakerSession.State.FAILED && state != SpeakerSession.State.CLOSED;
+    }
+
+    /**
+     * Return the current state of the session. Doesn't lock, for the sender.
+     */
+    SpeakerSession getSession() {
+        return session.get();
+    }
+
+    /**
+     * Change the state of the session. Only called when synchronized
+     */
+    private void setState(SpeakerSession.State state) {
+        session.set(session.get().withState(state));
     }
 
     boolean isDigital() {
@@ -95,12 +140,12 @@ class AirtunesSpeaker {
 
     //-----------------------------------------------------------------------
 
-    synchronized void connect(String cipherkey, String cipheriv, int controlport, int timingport) {
+    synchronized void connect(StreamEncryption encryption, int controlport, int timingport) {
         this.error = null;
-        this.cipherkey = cipherkey;
-        this.cipheriv = cipheriv;
+        this.encryption = encryption;
         this.controlport = controlport;
         this.timingport = timingport;
+        session.set(new SpeakerSession(SpeakerSession.State.CONNECTING, null, null, null));
         reconnect();
     }
 
@@ -121,127 +166,350 @@ class AirtunesSpeaker {
         }
     }
 
+    /**
+     * Rebuild the session with a new key and start it from the specified
+     * position, restoring the gain. Does nothing if the session already
+     * has that key, or has been closed or failed.
+     */
+    synchronized void rekey(StreamEncryption encryption, int rtpseq, int rtptime) {
+        if (this.encryption == encryption || !isActive()) {
+            return;
+        }
+        disconnect();
+        connect(encryption, controlport, timingport);
+        start(rtpseq, rtptime);
+        if (error == null && rtsp != null && gainset) {
+            try {
+                sendGain(sentgain = gain);
+            } catch (IOException e) {
+                lost(e);
+            }
+        }
+    }
+
+    /**
+     * Flush the speaker. If the session has failed it's left for the
+     * SessionMonitor to rebuild, which will rejoin at the current position
+     */
     synchronized void stop(int rtpseq, int rtptime) {
-        if (error == null) {
+        if (error == null && rtsp != null) {
             try {
+                setState(SpeakerSession.State.FLUSHING);
                 rtspFlush(rtpseq, rtptime);
+                setState(SpeakerSession.State.RECORDING);
             } catch (IOException e) {
-                reconnect();
-                if (error == null) {
-                    try {
-                        rtspFlush(rtpseq, rtptime);
-                    } catch (IOException e2) {
-                        setError(e2);
-                    }
-                }
+                lost(e);
+            }
+        }
+    }
+
+    /**
+     * Pause the speaker, flushing what it has buffered from the specified
+     * position onwards. The session is kept for {@link #resume}.
+     */
+    synchronized void pause(int rtpseq, int rtptime) {
+        if (error == null && rtsp != null) {
+            try {
+                setState(SpeakerSession.State.PAUSED);
+                rtspFlush(rtpseq, rtptime);
+            } catch (IOException e) {
+                lost(e);
             }
         }
     }
 
-    synchronized void setGain(float gain) {
-        if (error == null && cipherkey != null) {
-            gain = gain==gain ? Math.max(-30, Math.min(0, gain)) : -144;
-            String val = new DecimalFormat("#0.000000", new DecimalFormatSymbols(Locale.ENGLISH)).format(gain);
+    /**
+     * Resume a paused speaker from the specified position
+     */
+    synchronized void resume(int rtpseq, int rtptime) {
+        if (error == null && rtsp != null) {
             try {
-                rtspSetParameter("volume: "+val+"\r\n");
+                rtspRecord(rtpseq, rtptime);
             } catch (IOException e) {
-                reconnect();
-                if (error == null) {
-                    try {
-                        rtspSetParameter("volume: "+val+"\r\n");
-                    } catch (IOException e2) {
-                        setError(e2);
+                lost(e);
+            }
+        }
+    }
+
+    /**
+     * Set the gain asked for by the player. The AirtunesManager splits
+     * it between the stream and the volume of the speaker itself, and any
+     * volumes that change are sent before this returns.
+     */
+    void setGain(float gain) {
+        this.requestedgain = gain;
+        this.requested = true;
+        manager.updateGain();
+    }
+
+    boolean isGainRequested() {
+        return requested;
+    }
+
+    float getRequestedGain() {
+        return requestedgain;
+    }
+
+    /**
+     * Set the volume of the speaker, unless it's within step dB of the
+     * last one set. Doesn't block: return true if {@link #sendVolume}
+     * needs calling to send it.
+     */
+    boolean setVolume(float gain, float step) {
+        gain = gain==gain ? Math.max(-30, Math.min(0, gain)) : -144;
+        if (gainset && (gain == this.gain || Math.abs(gain - this.gain) < step)) {
+            return false;
+        }
+        this.gain = gain;
+        this.gainset = true;
+        return true;
+    }
+
+    /**
+     * Send the last volume set to the speaker, if it hasn't been already.
+     * If the session has failed it's left for the SessionMonitor to
+     * rebuild, which will set the volume again.
+     */
+    synchronized void sendVolume() {
+        if (gain == sentgain || error != null || rtsp == null) {
+            return;
+        }
+        try {
+            sendGain(sentgain = gain);
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void sendGain(float gain) throws IOException {
+        gain = gain==gain ? Math.max(-30, Math.min(0, gain)) : -144;
+        rtspSetParameter("volume: "+gainformat.format(gain)+"\r\n");
+    }
+
+    /**
+     * Called when the session fails but the speaker may still be there.
+     * The SessionMonitor will try to rebuild the session.
+     */
+    private void lost(IOException e) {
+        context.debug("Lost session to \""+name+"\": "+e);
+        invalidate();
+    }
+
+    //-----------------------------------------------------------------------
+    // Called from the SessionMonitor
+    //-----------------------------------------------------------------------
+
+    /**
+     * Send an OPTIONS request, if it's time to, to keep the session alive.
+     * When the response arrives the speaker is touched; if there isn't one
+     * the session is invalidated.
+     */
+    void keepalive(long now, long interval) {
+        Future<RtspConnection.Response> f = keepalive;
+        if (f != null) {
+            if (f.isDone()) {
+                keepalive = null;
+                try {
+                    RtspConnection.await(f);
+                    touch();
+                } catch (IOException e) {
+                    synchronized(this) {
+                        if (rtsp == keepaliveconnection) {
+                            lost(e);
+                        }
                     }
                 }
             }
+        } else if (now - keepalivetime >= interval) {
+            keepalivetime = now;
+            try {
+                synchronized(this) {
+                    if (rtsp != null) {
+                        keepalive = submitRTSP("OPTIONS", null, null);
+                        keepaliveconnection = rtsp;
+                    }
+                }
+            } catch (IOException e) {
+                lost(e);
+            }
         }
     }
 
+    /**
+     * Mark the speaker as being rejoined, returning false if it already is
+     */
+    boolean startRejoin() {
+        return rejoining.compareAndSet(false, true);
+    }
+
+    void endRejoin() {
+        rejoining.set(false);
+    }
+
+    /**
+     * Rebuild the session and start playing from the specified position,
+     * and restore the gain. Throws an IOException if that fails, leaving
+     * the speaker disconnected.
+     */
+    synchronized void rejoin(int rtpseq, int rtptime) throws IOException {
+        try {
+            if (!isActive()) {
+                return;
+            }
+            keepalive = null;
+            handshake();
+            rtspRecord(rtpseq, rtptime);
+            if (gainset) {
+                sendGain(sentgain = gain);
+            }
+        } catch (IOException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    /**
+     * Give up on the speaker
+     */
+    synchronized void fail(IOException e) {
+        setError(e);
+    }
+
 
     synchronized void disconnect() {
         if (error == null) {
             try {
                 rtspTeardown();
             } catch (IOException e) { }
-            cipherkey = cipheriv = null;
+            encryption = null;
             invalidate();
+            setState(SpeakerSession.State.CLOSED);
         }
     }
 
     private void reconnect() {
         try {
-            if (cipherkey == null) {
-                throw new IOException("Not connected");
-            }
-            context.fireEvent("speakerOpening", null);
-            SecureRandom rng = new SecureRandom();
-            String sci = "0000000000000000" + Long.toString(Math.abs(rng.nextLong()), 16);
-            globalheaders.put("Client-Instance", sci.substring(sci.length()-16).toUpperCase());
-            globalheaders.put("User-Agent", "iTunes/4.6 (Macintosh; U; PPC Mac OS X 10.3)");
-            rtsp = new Socket();
-            rtsp.connect(artsp);
-            clientsessionid = new DecimalFormat("0000000000").format(Math.abs(rng.nextInt()));
-
-            byte[] challenge = new byte[16];
-            rng.nextBytes(challenge);
-            String sdp = "v=0\r\n"+
-                         "o=iTunes "+clientsessionid+" 0 IN IP4 "+host.getHostAddress()+"\r\n" +
-                         "s=iTunes\r\n" +
-                         "c=IN IP4 "+InetAddress.getLocalHost().getHostAddress()+"\r\n" +
-                         "t=0 0\r\n" +
-                         "m=audio 0 RTP/AVP 96\r\n" +
-                         "a=rtpmap:96 AppleLossless\r\n" +
-                         "a=fmtp:96 4096 0 16 40 10 14 2 255 0 0 44100\r\n" +
-                         "a=rsaaeskey:"+cipherkey+"\r\n" +
-                         "a=aesiv:"+cipheriv+"\r\n";
-
-            rtspAnnounce(sdp, base64encode(challenge, false));
-            rtspSetup(controlport, timingport);
-            audio = new DatagramSocket();
-            touch = (int)((System.currentTimeMillis() + VALIDITY) / 1000);
-            context.fireEvent("speakerOpen", null);
+            handshake();
         } catch (IOException e) {
             setError(e);
         }
     }
 
+    /**
+     * Open the RTSP connection and ANNOUNCE and SETUP the session
+     */
+    private void handshake() throws IOException {
+        if (encryption == null) {
+            throw new IOException("Not connected");
+        }
+        context.fireEvent("speakerOpening", null);
+        SecureRandom rng = new SecureRandom();
+        String sci = "0000000000000000" + Long.toString(Math.abs(rng.nextLong()), 16);
+        globalheaders.put("Client-Instance", sci.substring(sci.length()-16).toUpperCase());
+        globalheaders.put("User-Agent", "iTunes/4.6 (Macintosh; U; PPC Mac OS X 10.3)");
+        if (rtsp != null) {
+            rtsp.close();
+        }
+        rtsp = RtspClient.getInstance(context).open(artsp);
+        rtsp.awaitConnected(TIMEOUT);
+        clientsessionid = new DecimalFormat("0000000000").format(Math.abs(rng.nextInt()));
+
+        byte[] challenge = new byte[16];
+        rng.nextBytes(challenge);
+        String sdp = "v=0\r\n"+
+                     "o=iTunes "+clientsessionid+" 0 IN IP4 "+host.getHostAddress()+"\r\n" +
+                     "s=iTunes\r\n" +
+                     "c=IN IP4 "+InetAddress.getLocalHost().getHostAddress()+"\r\n" +
+                     "t=0 0\r\n" +
+                     "m=audio 0 RTP/AVP 96\r\n" +
+                     "a=rtpmap:96 AppleLossless\r\n" +
+                     "a=fmtp:96 4096 0 16 40 10 14 2 255 0 0 44100\r\n" +
+                     encryption.getSDPAttributes();
+
+        rtspAnnounce(sdp, base64encode(challenge, false));
+        rtspSetup(controlport, timingport);
+        touch.set((int)((System.currentTimeMillis() + VALIDITY) / 1000));
+        context.fireEvent("speakerOpen", null);
+    }
+
     private void invalidate() {
-        try {
+        if (rtsp != null) {
             rtsp.close();
-        } catch (IOException e) {}
+        }
         rtsp = null;
-        touch = 0;
-        atiming = aserver = acontrol = null;
+        touch.set(0);
+        session.set(new SpeakerSession(SpeakerSession.State.CONNECTING, null, null, null));
     }
 
     int getLatency() {
         return latency;
     }
 
+    /**
+     * Return the latency we need to allow for this speaker in samples:
+     * the Audio-Latency it gave us, plus half the measured round trip
+     * to the speaker once we've measured it
+     */
+    int getNetworkLatency() {
+        int l = latency;
+        if (timing.isValid()) {
+            l += (int)(timing.getRoundTrip() / 2 * 441 / 10000000);
+        }
+        return l;
+    }
+
+    SyncPacket getSyncPacket() {
+        return syncpacket;
+    }
+
     InetSocketAddress getServerAddress() {
-        return aserver;
+        return session.get().server;
     }
 
     InetSocketAddress getControlAddress() {
-        return acontrol;
+        return session.get().control;
     }
 
     InetSocketAddress getTimingAddress() {
-        return atiming;
-    }
-
-    DatagramSocket getAudioSocket() {
-        return audio;
+        return session.get().timing;
     }
 
     float getGain() {
         return gain;
     }
 
+    /**
+     * Called from the control thread when this speaker asked for count packets
+     * to be retransmitted, of which sent were still available
+     */
+    void resent(int count, int sent) {
+        resendrequests += count;
+        resends += sent;
+    }
+
+    /**
+     * Return the number of packets this speaker has asked to be retransmitted
+     */
+    long getResendRequestCount() {
+        return resendrequests;
+    }
+
+    /**
+     * Return the number of packets retransmitted to this speaker
+     */
+    long getResendCount() {
+        return resends;
+    }
+
     //--------------------------------------------------------------------
 
-    private synchronized Map<String,String> execRTSP(String cmd, String content, String[] newheaders) throws IOException {
-        OutputStreamWriter writer = new OutputStreamWriter(rtsp.getOutputStream(), "ISO-8859-1");
+    /**
+     * Send an RTSP request without waiting for the response
+     */
+    private synchronized Future<RtspConnection.Response> submitRTSP(String cmd, String content, String[] newheaders) throws IOException {
+        if (rtsp == null) {
+            throw new IOException("Not connected");
+        }
         Map<String,String> writeheaders = new HashMap<String,String>(globalheaders);
         writeheaders.put("CSeq", Integer.toString(++cseq));
         if (newheaders!=null) {
@@ -254,43 +522,38 @@ class AirtunesSpeaker {
         }
 //        System.out.println("WRITE: "+cmd+" rtsp://"+host.getHostAddress()+"/"+clientsessionid+": "+writeheaders+" = "+content);
 
-        writer.write(cmd+" rtsp://"+host.getHostAddress()+"/"+clientsessionid+" RTSP/1.0\r\n");
-        for (Iterator i = writeheaders.entrySet().iterator();i.hasNext();) {
-            Map.Entry e = (Map.Entry)i.next();
-            writer.write(e.getKey()+": "+e.getValue()+"\r\n");
+        StringBuilder sb = new StringBuilder();
+        sb.append(cmd+" rtsp://"+host.getHostAddress()+"/"+clientsessionid+" RTSP/1.0\r\n");
+        for (Iterator<Map.Entry<String,String>> i = writeheaders.entrySet().iterator();i.hasNext();) {
+            Map.Entry<String,String> e = i.next();
+            sb.append(e.getKey()+": "+e.getValue()+"\r\n");
         }
-        writer.write("\r\n");
+        sb.append("\r\n");
         if (content != null) {
-            writer.write(content);
+            sb.append(content);
         }
-        writer.flush();
+        return rtsp.send(cseq, sb.toString(), TIMEOUT);
+    }
+
+    /**
+     * Send an RTSP request and wait for the response, which must be "200 OK".
+     * Fails if there's no response within {@link #TIMEOUT}.
+     */
+    private synchronized Map<String,String> execRTSP(String cmd, String content, String[] newheaders) throws IOException {
+        return checkRTSP(RtspConnection.await(submitRTSP(cmd, content, newheaders)));
+    }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(rtsp.getInputStream(), "ISO-8859-1"));
-        String line = in.readLine();
+    private Map<String,String> checkRTSP(RtspConnection.Response response) throws IOException {
+        String line = response.status;
         if (line==null || line.length()==0) {
             throw new IOException("No response");
         } else if (line.startsWith("RTSP/1.0 453 ")) {
             throw new IOException("Speaker \""+name+"\" already in use");
         } else if (!line.equals("RTSP/1.0 200 OK")) {
             throw new IOException("Received \""+line+"\"");
-        } else {
-            String key = null;
-            Map<String,String> map = new LinkedHashMap<String,String>();
-            while ((line=in.readLine())!=null && line.length() > 0) {
-                if (key != null && Character.isWhitespace(line.charAt(0))) {
-                    map.put(key, map.get(key)+line);
-                } else {
-                    int i = line.indexOf(":");
-                    if (i == -1) {
-                        throw new IOException("Request failed, bad header");
-                    }
-                    key = line.substring(0, i);
-                    map.put(key, line.substring(i+1).trim());
-                }
-            }
-//            System.out.println("READ "+map);
-            return map;
         }
+//        System.out.println("READ "+response.headers);
+        return response.headers;
     }
 
     private static Map<String,String> splitProperties(String s) {
@@ -323,9 +586,10 @@ class AirtunesSpeaker {
 
         this.servertype = res.get("Server");
         Map<String,String> props = splitProperties(res.get("Transport"));
-        this.aserver = new InetSocketAddress(host, Integer.parseInt(props.get("server_port")));
-        this.atiming = new InetSocketAddress(host, Integer.parseInt(props.get("timing_port")));
-        this.acontrol = new InetSocketAddress(host, Integer.parseInt(props.get("control_port")));
+        session.set(new SpeakerSession(SpeakerSession.State.CONNECTING,
+            new InetSocketAddress(host, Integer.parseInt(props.get("server_port"))),
+            new InetSocketAddress(host, Integer.parseInt(props.get("control_port"))),
+            new InetSocketAddress(host, Integer.parseInt(props.get("timing_port")))));
         props = splitProperties(res.get("Audio-Jack-Status"));
         if (!props.containsKey("connected")) {
             throw new IOException("No speaker connected to Airport");
@@ -342,6 +606,7 @@ class AirtunesSpeaker {
             "RTP-Info", "seq="+rtpseq+";rtptime="+rtptime,
         });
         latency = Integer.parseInt(res.get("Audio-Latency"));
+        setState(SpeakerSession.State.RECORDING);
     }
 
     private void rtspSetParameter(String parameter) throws IOException {
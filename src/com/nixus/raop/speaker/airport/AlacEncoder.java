@@ -0,0 +1,329 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compressing Apple Lossless encoder for one frame of 352 stereo 16-bit samples.
+ *
+ * Channels are decorrelated to mid/side, each channel gets an LPC predictor
+ * (Levinson-Durbin on the windowed autocorrelation, order 4 or 8 - whichever
+ * gives the smaller residual) which is adapted per sample exactly as the
+ * decoder will, and the residual is Rice coded with the parameters we
+ * advertise in the fmtp line of the SDP (history 40, initial 10, limit 14).
+ * Bitstream layout follows the Apple reference decoder.
+ *
+ * If the frame doesn't compress to less than the size of an escape frame,
+ * {@link #encode} gives up and returns -1 so the caller can send it uncompressed.
+ *
+ * Not thread safe, preallocates everything it needs.
+ */
+class AlacEncoder {
+
+    private static final int FRAMESAMPLES = FramePacker.FRAMESIZE / 4;
+    private static final int MINORDER = 4, MAXORDER = 8, QUANT = 9;
+    private static final int SAMPLESIZE = 17;   // 16 bits + 1 for the side channel
+    private static final int HISTORYMULT = 40, INITIALHISTORY = 10, KMODIFIER = 14, RICEMODIFIER = 4;
+    private static final int ESCAPE = 0x1FF, ELEMENT_CPE = 1, ELEMENT_END = 7;
+
+    private final int[][] samples = new int[2][FRAMESAMPLES];
+    private final int[][] residuals = new int[2][FRAMESAMPLES];
+    private final int[][] coefs = new int[2][MAXORDER];
+    private final int[] orders = new int[2];
+    private final int[] trialresidual = new int[FRAMESAMPLES];
+    private final int[] trialcoefs = new int[MAXORDER];
+    private final int[] workcoefs = new int[MAXORDER];
+    private final double[] window = new double[FRAMESAMPLES];
+    private final double[] windowed = new double[FRAMESAMPLES];
+    private final double[] autoc = new double[MAXORDER + 1];
+    private final double[][] lpc = new double[MAXORDER][MAXORDER];
+    private final double[] levinson = new double[MAXORDER + 1];
+    private final double[] levinsonprev = new double[MAXORDER + 1];
+
+    private byte[] out;
+    private int outpos, outlimit, accbits;
+    private long acc;
+
+    AlacEncoder() {
+        // Welch window
+        double half = (FRAMESAMPLES - 1) / 2.0;
+        for (int i=0;i<FRAMESAMPLES;i++) {
+            double x = (i - half) / half;
+            window[i] = 1 - x * x;
+        }
+    }
+
+    /**
+     * Encode one frame of PCM
+     * @param in a big-endian view of the PCM data
+     * @param off the offset into in
+     * @param bigendian whether the PCM samples are big-endian
+     * @param out the array to write the frame to, at least limit bytes long
+     * @param limit the maximum number of bytes the frame may take
+     * @return the length of the frame in bytes, or -1 if it's not less than limit
+     */
+    int encode(ByteBuffer in, int off, boolean bigendian, byte[] out, int limit) {
+        final int[] mid = samples[0], side = samples[1];
+        for (int i=0;i<FRAMESAMPLES;i++) {
+            short l = in.getShort(off + i*4);
+            short r = in.getShort(off + i*4 + 2);
+            if (!bigendian) {
+                l = Short.reverseBytes(l);
+                r = Short.reverseBytes(r);
+            }
+            mid[i] = (l + r) >> 1;
+            side[i] = l - r;
+        }
+        for (int ch=0;ch<2;ch++) {
+            choosePredictor(samples[ch], coefs[ch], ch);
+            System.arraycopy(coefs[ch], 0, workcoefs, 0, orders[ch]);
+            predict(samples[ch], residuals[ch], workcoefs, orders[ch]);
+        }
+
+        this.out = out;
+        this.outpos = 0;
+        this.outlimit = limit;
+        this.acc = 0;
+        this.accbits = 0;
+
+        put(3, ELEMENT_CPE);
+        put(4, 0);              // element instance
+        put(12, 0);             // unused
+        put(1, 1);              // frame size follows
+        put(2, 0);              // no uncompressed low bits
+        put(1, 0);              // not verbatim
+        put(32, FRAMESAMPLES);
+        put(8, 1);              // mid/side interlacing shift
+        put(8, 1);              // mid/side interlacing weight
+        for (int ch=0;ch<2;ch++) {
+            put(4, 0);          // prediction type
+            put(4, QUANT);
+            put(3, RICEMODIFIER);
+            put(5, orders[ch]);
+            for (int i=0;i<orders[ch];i++) {
+                put(16, coefs[ch][i]);
+            }
+        }
+        for (int ch=0;ch<2;ch++) {
+            if (!entropyCode(residuals[ch])) {
+                return -1;
+            }
+        }
+        put(3, ELEMENT_END);
+        if (accbits > 0) {
+            put(8 - accbits, 0);
+        }
+        return outpos < limit ? outpos : -1;
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Prediction
+    //-----------------------------------------------------------------------------------
+
+    /**
+     * Set orders[ch] and the first orders[ch] values of coef to the quantized
+     * LPC coefficients which give the smallest residual for this channel
+     */
+    private void choosePredictor(int[] s, int[] coef, int ch) {
+        int maxorder = computeLPC(s);
+        int bestorder = 0;
+        long bestcost = cost(s);
+        for (int order=MINORDER;order<=maxorder;order+=MAXORDER-MINORDER) {
+            quantize(lpc[order-1], order, trialcoefs);
+            System.arraycopy(trialcoefs, 0, workcoefs, 0, order);
+            predict(s, trialresidual, workcoefs, order);
+            long cost = cost(trialresidual);
+            if (cost < bestcost) {
+                bestcost = cost;
+                bestorder = order;
+                System.arraycopy(trialcoefs, 0, coef, 0, order);
+            }
+        }
+        orders[ch] = bestorder;
+    }
+
+    /**
+     * Estimate the cost of coding a residual - order 0 just codes the samples
+     */
+    private static long cost(int[] residual) {
+        long cost = 0;
+        for (int i=0;i<FRAMESAMPLES;i++) {
+            cost += Math.abs(residual[i]);
+        }
+        return cost;
+    }
+
+    /**
+     * Compute LPC coefficients for every order up to MAXORDER from the windowed
+     * autocorrelation, storing them in lpc[order-1]. Return the highest usable order.
+     */
+    private int computeLPC(int[] s) {
+        for (int i=0;i<FRAMESAMPLES;i++) {
+            windowed[i] = s[i] * window[i];
+        }
+        for (int lag=0;lag<=MAXORDER;lag++) {
+            double sum = 0;
+            for (int i=lag;i<FRAMESAMPLES;i++) {
+                sum += windowed[i] * windowed[i-lag];
+            }
+            autoc[lag] = sum;
+        }
+        double err = autoc[0];
+        if (err <= 0) {
+            return 0;
+        }
+        final double[] a = levinson, prev = levinsonprev;
+        for (int m=1;m<=MAXORDER;m++) {
+            double k = autoc[m];
+            for (int j=1;j<m;j++) {
+                k -= a[j] * autoc[m-j];
+            }
+            k /= err;
+            System.arraycopy(a, 0, prev, 0, m);
+            a[m] = k;
+            for (int j=1;j<m;j++) {
+                a[j] = prev[j] - k * prev[m-j];
+            }
+            err *= 1 - k * k;
+            for (int j=0;j<m;j++) {
+                lpc[m-1][j] = a[j+1];
+            }
+            if (err <= 0) {
+                return m;
+            }
+        }
+        return MAXORDER;
+    }
+
+    private static void quantize(double[] lpc, int order, int[] coef) {
+        for (int i=0;i<order;i++) {
+            long c = Math.round(lpc[i] * (1 << QUANT));
+            coef[i] = (int)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, c));
+        }
+    }
+
+    private static int signExtend(int val) {
+        return (val << (32 - SAMPLESIZE)) >> (32 - SAMPLESIZE);
+    }
+
+    /**
+     * Run the adaptive predictor over s, writing the residual. The coefficients
+     * are adapted in place, mirroring what the decoder will do.
+     */
+    private static void predict(int[] s, int[] residual, int[] coef, int order) {
+        residual[0] = s[0];
+        if (order == 0) {
+            System.arraycopy(s, 1, residual, 1, FRAMESAMPLES - 1);
+            return;
+        }
+        for (int i=1;i<=order;i++) {
+            residual[i] = signExtend(s[i] - s[i-1]);
+        }
+        for (int i=order+1;i<FRAMESAMPLES;i++) {
+            final int base = i - order - 1;
+            final int s0 = s[base];
+            int sum = 1 << (QUANT - 1);
+            for (int j=0;j<order;j++) {
+                sum += (s[base+order-j] - s0) * coef[j];
+            }
+            sum = (sum >> QUANT) + s0;
+            int res = signExtend(s[i] - sum);
+            residual[i] = res;
+            if (res != 0) {
+                boolean neg = res < 0;
+                for (int index=order-1;index>=0 && (neg ? res < 0 : res > 0);index--) {
+                    int val = s0 - s[base+order-index];
+                    int sign = val > 0 ? 1 : val < 0 ? -1 : 0;
+                    if (neg) {
+                        sign = -sign;
+                    }
+                    coef[index] -= sign;
+                    val *= sign;
+                    res -= (val >> QUANT) * (order - index);
+                }
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Entropy coding
+    //-----------------------------------------------------------------------------------
+
+    /**
+     * Rice code the residual, returning false if we overflow outlimit
+     */
+    private boolean entropyCode(int[] residual) {
+        int history = INITIALHISTORY;
+        int signmodifier = 0;
+        for (int i=0;i<FRAMESAMPLES;) {
+            int k = log2((history >> 9) + 3);
+            int x = -2 * residual[i++] - 1;
+            x ^= x >> 31;
+            int n = x - signmodifier;
+            encodeScalar(n, k, SAMPLESIZE);
+            history += x * HISTORYMULT - ((history * HISTORYMULT) >> 9);
+            signmodifier = 0;
+            // Clamped on the value coded, as the decoder sees it
+            if (n > 0xFFFF) {
+                history = 0xFFFF;
+            }
+            if (history < 128 && i < FRAMESAMPLES) {
+                k = 7 - log2(history) + ((history + 16) >> 6);
+                int blocksize = 0;
+                while (i < FRAMESAMPLES && residual[i] == 0) {
+                    i++;
+                    blocksize++;
+                }
+                encodeScalar(blocksize, k, 16);
+                signmodifier = blocksize <= 0xFFFF ? 1 : 0;
+                history = 0;
+            }
+            if (outpos >= outlimit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void encodeScalar(int x, int k, int samplesize) {
+        k = Math.min(k, KMODIFIER);
+        int divisor = (1 << k) - 1;
+        int q = x / divisor;
+        int r = x % divisor;
+        if (q > 8) {
+            put(9, ESCAPE);
+            put(samplesize, x);
+        } else {
+            if (q > 0) {
+                put(q, (1 << q) - 1);
+            }
+            put(1, 0);
+            if (k != 1) {
+                if (r > 0) {
+                    put(k, r + 1);
+                } else {
+                    put(k - 1, 0);
+                }
+            }
+        }
+    }
+
+    private static int log2(int v) {
+        return v == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(v);
+    }
+
+    private void put(int bits, int value) {
+        if (bits == 0) {
+            return;
+        }
+        acc = (acc << bits) | (value & ((1l << bits) - 1));
+        accbits += bits;
+        while (accbits >= 8) {
+            accbits -= 8;
+            if (outpos < outlimit) {
+                out[outpos] = (byte)(acc >>> accbits);
+            }
+            outpos++;
+        }
+    }
+
+}
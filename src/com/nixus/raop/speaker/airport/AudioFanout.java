@@ -0,0 +1,152 @@
+package com.nixus.raop.speaker.airport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends each audio packet to every speaker in an AirtunesManager from one
+ * non-blocking DatagramChannel, rather than one blocking DatagramSocket per
+ * speaker. A send never waits: if the socket buffer is full for a destination
+ * the packet is copied to that destination's backlog and retried on the next
+ * tick, and if that fills the oldest packet is dropped. Failures are counted
+ * and logged per speaker, so one bad speaker can't hold up the rest.
+ *
+ * {@link #send} is only called from the sender thread, {@link #add} and
+ * {@link #remove} from any thread. The sender only reads the speakers'
+ * published {@link SpeakerSession}, so never waits on their locks.
+ */
+class AudioFanout {
+
+    private static final int BACKLOG = 8;
+    private static final int PACKETCAPACITY = FramePacker.PAYLOADSIZE + 12;
+
+    private final DatagramChannel channel;
+    private final CopyOnWriteArrayList<Destination> destinations = new CopyOnWriteArrayList<Destination>();
+
+    AudioFanout() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(null);
+    }
+
+    void add(AirtunesSpeaker speaker) {
+        destinations.add(new Destination(speaker));
+    }
+
+    void remove(AirtunesSpeaker speaker) {
+        for (Iterator<Destination> i = destinations.iterator();i.hasNext();) {
+            Destination d = i.next();
+            if (d.speaker == speaker) {
+                destinations.remove(d);
+            }
+        }
+    }
+
+    void close() {
+        destinations.clear();
+        try {
+            channel.close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Send the packet, from position to limit, to every connected speaker.
+     * The position of the packet is not changed.
+     */
+    void send(ByteBuffer packet) {
+        final int position = packet.position();
+        for (Iterator<Destination> i = destinations.iterator();i.hasNext();) {
+            Destination d = i.next();
+            SpeakerSession session = d.speaker.getSession();
+            if (session.isRecording() && d.speaker.isConnected()) {
+                d.send(packet, session.server);
+                packet.position(position);
+            }
+        }
+    }
+
+    /**
+     * Return the number of packets dropped for the specified speaker
+     * because its backlog was full
+     */
+    long getDropCount(AirtunesSpeaker speaker) {
+        Destination d = getDestination(speaker);
+        return d == null ? 0 : d.drops;
+    }
+
+    /**
+     * Return the number of sends to the specified speaker that failed
+     */
+    long getFailureCount(AirtunesSpeaker speaker) {
+        Destination d = getDestination(speaker);
+        return d == null ? 0 : d.failures;
+    }
+
+    private Destination getDestination(AirtunesSpeaker speaker) {
+        for (Iterator<Destination> i = destinations.iterator();i.hasNext();) {
+            Destination d = i.next();
+            if (d.speaker == speaker) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    private class Destination {
+
+        final AirtunesSpeaker speaker;
+        final ByteBuffer[] backlog = new ByteBuffer[BACKLOG];
+        int backloghead, backloglen;
+        volatile long drops, failures;      // written by the sender only
+        boolean failing;
+
+        Destination(AirtunesSpeaker speaker) {
+            this.speaker = speaker;
+        }
+
+        void send(ByteBuffer packet, InetSocketAddress address) {
+            try {
+                while (backloglen > 0) {
+                    ByteBuffer pending = backlog[backloghead];
+                    if (channel.send(pending, address) == 0) {
+                        break;
+                    }
+                    backloghead = (backloghead + 1) % BACKLOG;
+                    backloglen--;
+                }
+                if (backloglen > 0 || channel.send(packet, address) == 0) {
+                    queue(packet);
+                }
+                failing = false;
+            } catch (IOException e) {
+                failures++;
+                if (!failing) {
+                    failing = true;
+                    speaker.getContext().warn("Audio send failed", e);
+                }
+            }
+        }
+
+        private void queue(ByteBuffer packet) {
+            if (backloglen == BACKLOG) {
+                backloghead = (backloghead + 1) % BACKLOG;
+                backloglen--;
+                drops++;
+            }
+            int ix = (backloghead + backloglen) % BACKLOG;
+            if (backlog[ix] == null) {
+                backlog[ix] = ByteBuffer.allocateDirect(PACKETCAPACITY);
+            }
+            backlog[ix].clear();
+            backlog[ix].put(packet);
+            backlog[ix].flip();
+            backloglen++;
+        }
+
+    }
+
+}
@@ -31,6 +31,10 @@ public class Finder implements Service, Runnable {
                 if (services!=null) {
                     for (int i=0;i<services.length;i++) {
                         SpeakerRef ref = new SpeakerRef(services[i].getName(), services[i].getHost(), services[i].getPort(),services[i].getProtocol());
+                        Map<String,String> txt = services[i].getProperties();
+                        if (txt != null) {
+                            ref.encryption = txt.get("et");
+                        }
                         if (!copy.remove(ref)) {
                             addSpeaker(ref);
                         }
@@ -65,6 +69,9 @@ public class Finder implements Service, Runnable {
         properties.put("host", ref.host);
         properties.put("port", Integer.toString(ref.port));
         properties.put("protocol", ref.protocol);
+        if (ref.encryption != null) {
+            properties.put("et", ref.encryption);
+        }
         ServiceContext sc = context.addService(new Class[] { Speaker.class }, new SpeakerImpl(), properties, false);
         sc.start();
     }
@@ -108,6 +115,7 @@ public class Finder implements Service, Runnable {
         int port;
         long uid;
 		String protocol;
+        String encryption;
 
         SpeakerRef(String name, String host, int port, String protocol) {
             this.host = host;
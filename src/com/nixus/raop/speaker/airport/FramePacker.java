@@ -0,0 +1,131 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Builds the payload of an uncompressed ("escape") ALAC frame from 352 stereo
+ * 16-bit samples and encrypts it in place.
+ *
+ * The escape frame is a 23 bit header followed by the samples, big-endian, so
+ * every sample byte ends up shifted left by one bit. Rather than doing that a
+ * byte at a time we load four samples as one long, swap to big-endian if
+ * required, shift and carry the top bit of the next word in. The plaintext is
+ * built in a direct buffer which is handed straight to the Cipher ByteBuffer API.
+ *
+ * If compression is turned on the frame is first run through an {@link AlacEncoder},
+ * and the escape frame is only built if that doesn't make it any smaller.
+ *
+ * Not thread safe - one instance per AirtunesManager, used by its sender thread.
+ */
+class FramePacker {
+
+    /**
+     * Number of bytes of PCM in one frame
+     */
+    static final int FRAMESIZE = 352 * 4;
+
+    /**
+     * Number of bytes in the packed ALAC escape frame
+     */
+    static final int PAYLOADSIZE = FRAMESIZE + 3;
+
+    private static final long BYTESWAPMASK = 0x00FF00FF00FF00FFl;
+
+    private final ByteBuffer plain;
+    private final byte[] compressed = new byte[PAYLOADSIZE];
+    private AlacEncoder encoder;
+    private byte[] lastbuf;
+    private ByteBuffer lastview;
+
+    FramePacker() {
+        plain = ByteBuffer.allocateDirect(PAYLOADSIZE).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Set whether frames should be ALAC compressed where possible
+     */
+    void setCompressed(boolean compressed) {
+        if (compressed != isCompressed()) {
+            encoder = compressed ? new AlacEncoder() : null;
+        }
+    }
+
+    boolean isCompressed() {
+        return encoder != null;
+    }
+
+    /**
+     * Pack {@link #FRAMESIZE} bytes of PCM from buf into an ALAC frame, and write
+     * the encrypted frame to the output buffer at its current position
+     * @param buf the PCM data
+     * @param off the offset into buf
+     * @param bigendian whether the PCM samples are big-endian
+     * @param cipher the cipher to encrypt with, or null to write the frame as cleartext
+     * @param out the buffer to write to, which must have {@link #PAYLOADSIZE} bytes remaining
+     * @return the number of bytes written, which is at most {@link #PAYLOADSIZE}
+     */
+    int pack(byte[] buf, int off, boolean bigendian, Cipher cipher, ByteBuffer out) throws GeneralSecurityException {
+        if (buf != lastbuf) {
+            // Callers reuse their buffers, so this only allocates when the source changes
+            lastview = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN);
+            lastbuf = buf;
+        }
+        return pack(lastview, off, bigendian, cipher, out);
+    }
+
+    /**
+     * As {@link #pack(byte[],int,boolean,Cipher,ByteBuffer)}, reading the
+     * PCM from a big-endian buffer - a slot of the packet queue, say
+     */
+    int pack(ByteBuffer in, int off, boolean bigendian, Cipher cipher, ByteBuffer out) throws GeneralSecurityException {
+        int len = encoder == null ? -1 : encoder.encode(in, off, bigendian, compressed, PAYLOADSIZE);
+        if (len < 0) {
+            packEscape(in, off, bigendian);
+            len = PAYLOADSIZE;
+        } else {
+            plain.clear();
+            plain.put(compressed, 0, len);
+        }
+
+        plain.clear();
+        if (cipher != null) {
+            plain.limit(len & ~15);
+            cipher.doFinal(plain, out);
+        }
+        plain.limit(len);
+        out.put(plain);
+        return len;
+    }
+
+    private void packEscape(ByteBuffer in, int off, boolean bigendian) {
+        final ByteBuffer plain = this.plain;
+        long word = readWord(in, off, bigendian);
+        plain.put(0, (byte)0x20);
+        plain.put(1, (byte)0);
+        plain.put(2, (byte)(0x02 | (int)(word >>> 63)));
+        int pos = 3;
+        for (int i=8;i<FRAMESIZE;i+=8) {
+            long next = readWord(in, off + i, bigendian);
+            plain.putLong(pos, (word << 1) | (next >>> 63));
+            word = next;
+            pos += 8;
+        }
+        plain.putLong(pos, word << 1);
+    }
+
+    /**
+     * Read four 16-bit samples as one big-endian long
+     */
+    private static long readWord(ByteBuffer in, int off, boolean bigendian) {
+        long word = in.getLong(off);
+        if (!bigendian) {
+            word = ((word & BYTESWAPMASK) << 8) | ((word >>> 8) & BYTESWAPMASK);
+        }
+        return word;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks that {@link FramePacker} builds escape frames byte for byte the
+ * same as the packer it replaced, which packed a byte at a time into an
+ * array, encrypted that and patched the cleartext tail in by hand. Random
+ * frames of both endiannesses, at odd offsets, encrypted and not.
+ *
+ * There's no test tree, so run it by hand after touching the packing path:
+ * <pre>java com.nixus.raop.speaker.airport.FramePackerCheck [frames]</pre>
+ * Exits with status 1 on the first frame that differs.
+ */
+class FramePackerCheck {
+
+    private static final int HEADERSIZE = 12;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Random rng = new Random(1);
+        byte[] key = new byte[16], iv = new byte[16];
+        rng.nextBytes(key);
+        rng.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+
+        FramePacker packer = new FramePacker();
+        byte[] expected = new byte[HEADERSIZE + FramePacker.PAYLOADSIZE];
+        byte[] actual = new byte[HEADERSIZE + FramePacker.PAYLOADSIZE];
+        byte[] cipherinput = new byte[FramePacker.FRAMESIZE];
+        for (int i=0;i<frames;i++) {
+            boolean bigendian = rng.nextBoolean();
+            boolean encrypted = rng.nextBoolean();
+            int off = rng.nextInt(8);
+            byte[] buf = new byte[off + FramePacker.FRAMESIZE + rng.nextInt(8)];
+            rng.nextBytes(buf);
+
+            Arrays.fill(expected, (byte)0);
+            packOld(buf, off, bigendian, encrypted ? cipher : null, cipherinput, expected);
+            Arrays.fill(actual, (byte)0);
+            ByteBuffer out = ByteBuffer.wrap(actual);
+            out.position(HEADERSIZE);
+            packer.pack(buf, off, bigendian, encrypted ? cipher : null, out);
+
+            if (!Arrays.equals(expected, actual)) {
+                System.out.println("Frame "+i+" differs (bigendian="+bigendian+", encrypted="+encrypted+", off="+off+")");
+                System.exit(1);
+            }
+        }
+        System.out.println(frames+" frames identical");
+    }
+
+    /**
+     * The packer as it was in AirtunesManager.sendAudioPacket, writing the
+     * payload to data from {@link #HEADERSIZE}
+     */
+    private static void packOld(byte[] buf, int off, boolean bigendian, Cipher cipher, byte[] cipherinput, byte[] data) throws Exception {
+        final int len = FramePacker.FRAMESIZE;
+        cipherinput[0] = (byte)0x20;
+        cipherinput[1] = 0;
+        byte v1 = 1;
+        int highbyte = bigendian ? 0 : 1;
+        int i;
+        for (i=0;i<len - 2;i+=2) {
+            byte v2 = buf[off + i + highbyte];
+            cipherinput[i + 2] = (byte)(((v2&0x80) >> 7) | (v1 << 1));
+            v1 = buf[off + i + (1 - highbyte)];
+            cipherinput[i + 3] = (byte)(((v1&0x80) >> 7) | (v2 << 1));
+        }
+        if (cipher != null) {
+            cipher.doFinal(cipherinput, 0, cipherinput.length, data, HEADERSIZE);
+        } else {
+            System.arraycopy(cipherinput, 0, data, HEADERSIZE, cipherinput.length);
+        }
+        byte v2 = buf[off + i + highbyte];
+        data[data.length - 3] = (byte)(((v2&0x80) >> 7) | (v1 << 1));
+        v1 = buf[off + i + (1 - highbyte)];
+        data[data.length - 2] = (byte)(((v1&0x80) >> 7) | (v2 << 1));
+        data[data.length - 1] = (byte)(v1<<1);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-point gain applied to the PCM of each frame before it's packed,
+ * so the level of the whole stream can be changed without telling any
+ * speaker. A change is ramped linearly over {@link #RAMP} samples so it
+ * doesn't click, and a ramp carries on into the next frame from the sample
+ * it reached. At unity with no ramp in progress frames aren't touched.
+ *
+ * The gain can be set from any thread; frames are processed in place by
+ * the sender thread as it packs them, after the packet queue, so a change
+ * is heard once the speakers play what's being sent - the latency they're
+ * given in the sync packets - rather than after the queue as well.
+ */
+class GainStage {
+
+    /**
+     * Unity gain, in Q16
+     */
+    static final int UNITY = 1 << 16;
+
+    /**
+     * Length of a ramp in samples - 20ms
+     */
+    static final int RAMP = 882;
+
+    private volatile int target = UNITY;
+    private long end = (long)UNITY << 16, current = end, step;     // Q32, sender thread only
+    private int remaining;                                          // sender thread only
+
+    /**
+     * Set the gain in dB. NaN mutes the stream.
+     */
+    void setGain(float gain) {
+        if (gain != gain) {
+            target = 0;
+        } else {
+            target = (int)Math.round(Math.pow(10, Math.min(0, gain) / 20) * UNITY);
+        }
+    }
+
+    /**
+     * Return the gain being ramped to, in dB
+     */
+    float getGain() {
+        int target = this.target;
+        return target == 0 ? Float.NaN : (float)(Math.log10((double)target / UNITY) * 20);
+    }
+
+    /**
+     * Apply the gain in place to one frame of 16-bit stereo PCM
+     * @param frame the frame, {@link FramePacker#FRAMESIZE} bytes from off
+     * @param bigendian the byte order of the frame
+     * @return false if the gain is unity, in which case the frame isn't touched
+     */
+    boolean apply(ByteBuffer frame, int off, boolean bigendian) {
+        long end = (long)target << 16;
+        if (end != this.end) {
+            this.end = end;
+            step = (end - current) / RAMP;
+            remaining = RAMP;
+        }
+        if (remaining == 0 && current == (long)UNITY << 16) {
+            return false;
+        }
+        final int hi = off + (bigendian ? 0 : 1), lo = off + (bigendian ? 1 : 0);
+        for (int i=0;i<FramePacker.FRAMESIZE;i+=4) {
+            if (remaining > 0) {
+                current = --remaining == 0 ? end : current + step;
+            }
+            final int g = (int)(current >> 16);
+            for (int j=i;j<i+4;j+=2) {
+                int s = (frame.get(j+hi) << 8) | (frame.get(j+lo) & 0xFF);
+                s = (s * g + 0x8000) >> 16;
+                frame.put(j+hi, (byte)(s >> 8));
+                frame.put(j+lo, (byte)s);
+            }
+        }
+        return true;
+    }
+
+}
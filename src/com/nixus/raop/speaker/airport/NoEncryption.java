@@ -0,0 +1,27 @@
+package com.nixus.raop.speaker.airport;
+
+import javax.crypto.Cipher;
+
+/**
+ * Send the audio stream in the clear, for speakers that advertise
+ * "et=0" - saves encrypting every packet.
+ */
+class NoEncryption implements StreamEncryption {
+
+    static final NoEncryption INSTANCE = new NoEncryption();
+
+    private NoEncryption() {
+    }
+
+    public Cipher getCipher() {
+        return null;
+    }
+
+    public String getSDPAttributes() {
+        return "";
+    }
+
+    public void close() {
+    }
+
+}
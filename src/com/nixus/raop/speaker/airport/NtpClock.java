@@ -0,0 +1,73 @@
+package com.nixus.raop.speaker.airport;
+
+/**
+ * The clock we give the speakers in timing and sync packets, as 64-bit NTP
+ * timestamps (32 bits of seconds, 32 bits of fraction). It runs off
+ * System.nanoTime so it's monotonic and has full sub-millisecond resolution;
+ * the wall clock is only read once to give it a starting point.
+ *
+ * iTunes uses a monotonic system clock rather than wall-clock time, so the
+ * seconds are {@link #align aligned} with those of the first speaker that
+ * asks us for the time. There is one clock per process so speakers driven
+ * by different AirtunesManagers share the same timeline.
+ */
+class NtpClock {
+
+    private static final long NANOS = 1000000000l;
+    private static final long EPOCHOFFSET = 2208988800l;    // 1900 to 1970 in seconds
+    private static final NtpClock INSTANCE = new NtpClock();
+
+    private final long basenanos;
+    private volatile long baseseconds;
+    private volatile boolean aligned;
+
+    private NtpClock() {
+        long ms = System.currentTimeMillis();
+        basenanos = System.nanoTime() - (ms % 1000) * 1000000;
+        baseseconds = ms / 1000 + EPOCHOFFSET;
+    }
+
+    static NtpClock getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the seconds of this clock to match the specified NTP time,
+     * read from a speaker. Only the first call has any effect.
+     */
+    synchronized void align(long ntptime) {
+        if (!aligned) {
+            baseseconds = (ntptime >>> 32) - (System.nanoTime() - basenanos) / NANOS;
+            aligned = true;
+        }
+    }
+
+    boolean isAligned() {
+        return aligned;
+    }
+
+    /**
+     * Return the current time as an NTP timestamp
+     */
+    long now() {
+        return toNTPTime(System.nanoTime());
+    }
+
+    /**
+     * Convert a value from System.nanoTime() to an NTP timestamp
+     */
+    long toNTPTime(long nanotime) {
+        long elapsed = nanotime - basenanos;
+        long secs = baseseconds + elapsed / NANOS;
+        long frac = ((elapsed % NANOS) << 32) / NANOS;
+        return (secs << 32) + frac;
+    }
+
+    /**
+     * Convert the difference between two NTP timestamps to nanoseconds
+     */
+    static long toNanos(long ntpdiff) {
+        return (ntpdiff >> 32) * NANOS + (((ntpdiff & 0xFFFFFFFFl) * NANOS) >>> 32);
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.nixus.raop.speaker.airport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the audio sender from a monotonic clock. The send deadline of every
+ * packet is derived from the number of samples sent since the clock was
+ * started, so unlike a fixed-rate executor with a truncated period there is
+ * no error to accumulate: after an hour we're still sample-locked.
+ *
+ * If the sender falls behind (a GC pause, the producer is late) it catches
+ * up by sending back to back until it's on time again. If it falls more than
+ * {@link #MAXLATE} behind - or nothing has been sent for that long - the
+ * clock is restarted from now rather than flooding the speakers.
+ */
+class Pacer implements Runnable {
+
+    /**
+     * The thing being paced
+     */
+    interface Source {
+        /**
+         * Send the next packet, which was due at the specified System.nanoTime().
+         * Return false if there was nothing to send.
+         */
+        boolean send(long deadline);
+    }
+
+    /**
+     * Maximum number of packets we're allowed to fall behind before restarting the clock
+     */
+    static final int MAXLATE = 32;
+
+    private static final int SAMPLERATE = 44100;
+    private static final long NANOS = 1000000000l;
+    private static final long IDLEPOLL = 1000000;   // 1ms
+
+    private final Source source;
+    private final int samplesperpacket;
+    private final long period, maxlate;
+    private final Thread thread;
+    private volatile boolean cancelled, reset, paused;
+    private boolean idle;       // guarded by this
+
+    // Statistics, written by the pacing thread only
+    private volatile long sent, late, restarts, maxlateness, totallateness;
+
+    Pacer(String name, int samplesperpacket, Source source) {
+        this.source = source;
+        this.samplesperpacket = samplesperpacket;
+        this.period = toNanos(samplesperpacket);
+        this.maxlate = period * MAXLATE;
+        this.thread = new Thread(this, name);
+        thread.setPriority(Thread.MAX_PRIORITY - 1);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop sending, and wait until the source is no longer being called,
+     * so whatever it sends with can be closed once this returns
+     */
+    void stop() {
+        synchronized(this) {
+            cancelled = true;
+            LockSupport.unpark(thread);
+            notifyAll();
+        }
+        if (Thread.currentThread() != thread) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop sending, and wait until the source is no longer being called.
+     * The clock is restarted from the time of {@link #resume}.
+     */
+    synchronized void pause() {
+        paused = true;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (!idle && !cancelled && thread.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * Restart the clock from now, eg when the stream is interrupted
+     */
+    void reset() {
+        reset = true;
+    }
+
+    /**
+     * Return the duration of the specified number of samples in nanoseconds
+     */
+    static long toNanos(long samples) {
+        return (samples / SAMPLERATE) * NANOS + (samples % SAMPLERATE) * NANOS / SAMPLERATE;
+    }
+
+    public void run() {
+        long base = System.nanoTime();
+        long samples = 0;
+        boolean streaming = false;
+        while (!cancelled) {
+            if (paused) {
+                synchronized(this) {
+                    idle = true;
+                    notifyAll();
+                    while (paused && !cancelled) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) { }
+                    }
+                    idle = false;
+                }
+                reset = true;
+                continue;
+            }
+            long deadline = base + toNanos(samples);
+            long now = System.nanoTime();
+            if (deadline - now > 0) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+            if (reset || now - deadline > maxlate) {
+                if (streaming && !reset) {
+                    restarts++;
+                }
+                reset = streaming = false;
+                base = deadline = now;
+                samples = 0;
+            }
+            if (source.send(deadline)) {
+                long lateness = now - deadline;
+                samples += samplesperpacket;
+                streaming = true;
+                sent++;
+                if (lateness > period) {
+                    late++;
+                }
+                totallateness += lateness;
+                if (lateness > maxlateness) {
+                    maxlateness = lateness;
+                }
+            } else {
+                LockSupport.parkNanos(this, IDLEPOLL);
+            }
+        }
+    }
+
+    /**
+     * Return a map of statistics about how well we're keeping time:
+     * packets sent, how many of those were more than one packet late,
+     * how often we've given up and restarted the clock, and the mean
+     * and maximum lateness in microseconds.
+     */
+    Map<String,Object> reportState() {
+        long sent = this.sent;
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("sent", sent);
+        map.put("late", late);
+        map.put("restarts", restarts);
+        map.put("meanlateness", sent == 0 ? 0 : totallateness / sent / 1000);
+        map.put("maxlateness", maxlateness / 1000);
+        return map;
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded history of audio packets that have already been sent, exactly
+ * as they went on the wire, indexed by RTP sequence number. Used to answer
+ * retransmit requests from speakers that lost a packet.
+ *
+ * Written by the sender thread, read by the control thread.
+ */
+class PacketHistory {
+
+    private final ByteBuffer[] packets;
+    private final int[] seqs;
+    private final int mask;
+
+    /**
+     * @param capacity the number of packets to keep - rounded up to a power of two
+     */
+    PacketHistory(int capacity, int packetcapacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        packets = new ByteBuffer[size];
+        seqs = new int[size];
+        mask = size - 1;
+        for (int i=0;i<size;i++) {
+            packets[i] = ByteBuffer.allocateDirect(packetcapacity);
+            seqs[i] = -1;
+        }
+    }
+
+    /**
+     * Store a copy of the packet between its position and limit.
+     * The position of the packet is not changed.
+     */
+    synchronized void put(int seq, ByteBuffer packet) {
+        seq &= 0xFFFF;
+        int ix = seq & mask;
+        ByteBuffer copy = packets[ix];
+        int position = packet.position();
+        copy.clear();
+        copy.put(packet);
+        copy.flip();
+        packet.position(position);
+        seqs[ix] = seq;
+    }
+
+    /**
+     * Copy the packet with the specified sequence number into the buffer at its
+     * position, and return true, or return false if it's no longer available
+     */
+    synchronized boolean get(int seq, ByteBuffer out) {
+        seq &= 0xFFFF;
+        int ix = seq & mask;
+        ByteBuffer packet = packets[ix];
+        if (seqs[ix] != seq || out.remaining() < packet.remaining()) {
+            return false;
+        }
+        out.put(packet);
+        packet.position(0);
+        return true;
+    }
+
+    synchronized void clear() {
+        for (int i=0;i<seqs.length;i++) {
+            seqs[i] = -1;
+        }
+    }
+
+}
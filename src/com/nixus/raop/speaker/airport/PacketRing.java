@@ -0,0 +1,159 @@
+package com.nixus.raop.speaker.airport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring of preallocated packet buffers,
+ * used to hand packets from the thread building them to the sender.
+ *
+ * The producer {@link #claim claims} the next free slot, fills it and
+ * {@link #publish publishes} it; the consumer {@link #poll polls} for the
+ * next published slot and {@link #release releases} it when done. A slot is
+ * never handed back to the producer until the consumer has released it, and
+ * neither side takes a lock. When the ring is full {@link #claim} parks the
+ * producer until the consumer catches up, unless the ring is
+ * {@link #setBlocked blocked}.
+ */
+class PacketRing {
+
+    private static final long MAXPARK = 1000000;    // 1ms
+
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();   // next slot to publish, written by producer
+    private final AtomicLong tail = new AtomicLong();   // next slot to consume, written by consumer
+    private final AtomicLong clearto = new AtomicLong();
+    private volatile Thread waiter;
+    private volatile boolean blocked;
+
+    /**
+     * @param capacity the number of slots - rounded up to a power of two
+     * @param slotsize the size of each slot in bytes
+     */
+    PacketRing(int capacity, int slotsize) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new ByteBuffer[size];
+        mask = size - 1;
+        for (int i=0;i<size;i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotsize);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Return the slot at the specified index, for writing constant data
+     * before the ring is used
+     */
+    ByteBuffer getSlot(int i) {
+        return slots[i];
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Producer
+    //-----------------------------------------------------------------------------------
+
+    /**
+     * Return the next slot to fill, waiting for the consumer if the ring is
+     * full, or null if it's full and blocked
+     */
+    ByteBuffer claim() throws InterruptedException {
+        final long h = head.get();
+        while (h - tail.get() >= slots.length) {
+            if (blocked) {
+                return null;
+            }
+            waiter = Thread.currentThread();
+            if (h - tail.get() >= slots.length) {
+                LockSupport.parkNanos(this, MAXPARK);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return slots[(int)h & mask];
+    }
+
+    /**
+     * Set whether the consumer has stopped, so {@link #claim} gives up
+     * rather than waiting for it - waking the producer if it's waiting
+     */
+    void setBlocked(boolean blocked) {
+        this.blocked = blocked;
+        wake();
+    }
+
+    /**
+     * Make the slot returned by the last call to {@link #claim} available to the consumer
+     */
+    void publish() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Discard every packet published but not yet consumed. The consumer
+     * will skip them the next time it polls.
+     */
+    void clear() {
+        clearto.set(head.get());
+    }
+
+    /**
+     * Return the position of the next packet to be published. Every packet
+     * published so far has been consumed once {@link #isConsumed} returns
+     * true for this position.
+     */
+    long getHead() {
+        return head.get();
+    }
+
+    /**
+     * Return true if the consumer has released, or skipped over, every
+     * packet before the specified position
+     */
+    boolean isConsumed(long position) {
+        return tail.get() >= position;
+    }
+
+    boolean isEmpty() {
+        return tail.get() >= head.get();
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Consumer
+    //-----------------------------------------------------------------------------------
+
+    /**
+     * Return the next published packet, or null if there isn't one
+     */
+    ByteBuffer poll() {
+        long t = tail.get();
+        long c = clearto.get();
+        if (t < c) {
+            tail.lazySet(t = c);
+            wake();
+        }
+        return t < head.get() ? slots[(int)t & mask] : null;
+    }
+
+    /**
+     * Return the slot returned by the last call to {@link #poll} to the producer
+     */
+    void release() {
+        tail.lazySet(tail.get() + 1);
+        wake();
+    }
+
+    private void wake() {
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+}
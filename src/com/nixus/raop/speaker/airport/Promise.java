@@ -0,0 +1,91 @@
+package com.nixus.raop.speaker.airport;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future that is completed by calling {@link #set} or {@link #fail}
+ * rather than by running a task.
+ */
+class Promise<V> implements Future<V> {
+
+    private V value;
+    private Throwable failure;
+    private boolean done, cancelled;
+
+    /**
+     * Complete with the specified value. Returns false if already complete
+     */
+    synchronized boolean set(V value) {
+        if (done) {
+            return false;
+        }
+        this.value = value;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Complete with the specified failure. Returns false if already complete
+     */
+    synchronized boolean fail(Throwable failure) {
+        if (done) {
+            return false;
+        }
+        this.failure = failure;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean cancel(boolean interrupt) {
+        if (done) {
+            return false;
+        }
+        done = cancelled = true;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long now = System.nanoTime();
+        final long deadline = now + unit.toNanos(timeout);
+        while (!done) {
+            if (deadline - now <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+            now = System.nanoTime();
+        }
+        return result();
+    }
+
+    private V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+}
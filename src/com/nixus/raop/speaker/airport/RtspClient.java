@@ -0,0 +1,176 @@
+package com.nixus.raop.speaker.airport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.nixus.raop.core.ServiceContext;
+
+/**
+ * Runs the RTSP connections to every speaker in the process from a single
+ * selector thread. Connections are opened with {@link #open}; requests
+ * are sent and their responses parsed by the {@link RtspConnection}.
+ */
+class RtspClient implements Runnable {
+
+    private static final long MAXSELECT = 100;      // ms, how often deadlines are checked
+    private static RtspClient instance;
+
+    private final ServiceContext context;
+    private final Selector selector;
+    private final Queue<RtspConnection> changes = new ConcurrentLinkedQueue<RtspConnection>();
+    private final Thread thread;
+
+    /**
+     * Return the RtspClient for the process, starting it if necessary
+     * @param context the context to log to, if it's started by this call
+     */
+    static synchronized RtspClient getInstance(ServiceContext context) throws IOException {
+        if (instance == null) {
+            instance = new RtspClient(context);
+        }
+        return instance;
+    }
+
+    private RtspClient(ServiceContext context) throws IOException {
+        this.context = context;
+        selector = Selector.open();
+        thread = new Thread(this, "qTunes-airtunes-rtsp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start connecting to the specified address
+     */
+    RtspConnection open(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        RtspConnection connection = new RtspConnection(this, channel);
+        if (channel.connect(address)) {
+            connection.connected();
+        }
+        changed(connection);
+        return connection;
+    }
+
+    /**
+     * Called when the connection needs to be registered, has something to
+     * write or has been closed, to have the selector thread look at it
+     */
+    void changed(RtspConnection connection) {
+        changes.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the selector. A failure handling one connection closes it, so
+     * a fault that would recur - a cancelled key, say - is only logged once.
+     */
+    public void run() {
+        while (true) {
+            try {
+                RtspConnection connection;
+                while ((connection=changes.poll()) != null) {
+                    SocketChannel channel = connection.getChannel();
+                    SelectionKey key = channel.keyFor(selector);
+                    try {
+                        if (connection.isClosed()) {
+                            if (key != null) {
+                                key.cancel();
+                            }
+                            channel.close();
+                        } else {
+                            int ops = SelectionKey.OP_READ;
+                            if (!channel.isConnected()) {
+                                ops = SelectionKey.OP_CONNECT;
+                            } else if (connection.hasOutput()) {
+                                ops |= SelectionKey.OP_WRITE;
+                            }
+                            if (key == null) {
+                                channel.register(selector, ops, connection);
+                            } else if (key.isValid()) {
+                                key.interestOps(ops);
+                            }
+                        }
+                    } catch (Exception e) {
+                        fail(key, connection, e);
+                    }
+                }
+
+                selector.select(MAXSELECT);
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator();i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    connection = null;
+                    try {
+                        connection = (RtspConnection)key.attachment();
+                        if (key.isConnectable()) {
+                            if (connection.getChannel().finishConnect()) {
+                                connection.connected();
+                                key.interestOps(connection.hasOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                            }
+                        } else {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable() && !connection.write()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        connection.close(e);
+                    } catch (Exception e) {
+                        fail(key, connection, e);
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (Iterator<SelectionKey> i = selector.keys().iterator();i.hasNext();) {
+                    SelectionKey key = i.next();
+                    if (key.isValid()) {
+                        connection = null;
+                        try {
+                            connection = (RtspConnection)key.attachment();
+                            connection.expire(now);
+                        } catch (Exception e) {
+                            fail(key, connection, e);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // The selector itself has failed - don't spin on it
+                context.warn("RTSP selector failed", e);
+                try {
+                    Thread.sleep(MAXSELECT);
+                } catch (InterruptedException e2) { }
+            }
+        }
+    }
+
+    /**
+     * Log an unexpected failure handling a connection, and close it
+     */
+    private void fail(SelectionKey key, RtspConnection connection, Exception e) {
+        context.warn("RTSP connection failed", e);
+        if (key != null) {
+            key.cancel();
+        }
+        if (connection != null) {
+            IOException e2 = new IOException(e.toString());
+            e2.initCause(e);
+            connection.close(e2);
+            try {
+                connection.getChannel().close();
+            } catch (IOException e3) { }
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+package com.nixus.raop.speaker.airport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One RTSP connection to a speaker, driven by the {@link RtspClient}
+ * selector thread. Requests can be pipelined: each is sent with its CSeq
+ * and a deadline, and the Future returned is completed when the response
+ * with that CSeq arrives, or failed if the deadline passes first.
+ *
+ * Responses are parsed from a buffer that persists for the life of the
+ * connection, so nothing read ahead is lost between responses.
+ */
+class RtspConnection {
+
+    private static final int MAXRESPONSE = 65536;
+    private static final String CHARSET = "ISO-8859-1";
+
+    /**
+     * A response to a request
+     */
+    static class Response {
+        final String status;
+        final Map<String,String> headers;
+        final String content;
+
+        Response(String status, Map<String,String> headers, String content) {
+            this.status = status;
+            this.headers = headers;
+            this.content = content;
+        }
+    }
+
+    private static class Request {
+        final int cseq;
+        final long deadline;
+        final Promise<Response> promise;
+
+        Request(int cseq, long deadline) {
+            this.cseq = cseq;
+            this.deadline = deadline;
+            this.promise = new Promise<Response>();
+        }
+    }
+
+    private final RtspClient client;
+    private final SocketChannel channel;
+    private final Promise<Void> connected = new Promise<Void>();
+    private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private final Map<Integer,Request> pending = new LinkedHashMap<Integer,Request>();
+    private ByteBuffer input = ByteBuffer.allocate(4096);     // selector thread only
+    private volatile boolean closed;
+
+    RtspConnection(RtspClient client, SocketChannel channel) {
+        this.client = client;
+        this.channel = channel;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Wait for the connection to be established, closing it if that
+     * takes longer than the specified number of milliseconds
+     */
+    void awaitConnected(long timeout) throws IOException {
+        try {
+            connected.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            close(new SocketTimeoutException("Connect timed out"));
+            throw new SocketTimeoutException("Connect timed out");
+        } catch (ExecutionException e) {
+            throw toIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Send a request. The Future returned fails with an IOException if
+     * no response is received within the specified number of milliseconds
+     * @param cseq the CSeq header of the request
+     * @param request the complete request
+     */
+    Future<Response> send(int cseq, String request, long timeout) throws IOException {
+        Request r = new Request(cseq, System.nanoTime() + timeout * 1000000l);
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(request.getBytes(CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        synchronized(this) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            pending.put(Integer.valueOf(cseq), r);
+            output.add(buf);
+        }
+        client.changed(this);
+        return r.promise;
+    }
+
+    /**
+     * Wait for the Future returned by {@link #send}
+     */
+    static Response await(Future<Response> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw toIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static IOException toIOException(ExecutionException e) {
+        Throwable t = e.getCause();
+        if (t instanceof IOException) {
+            return (IOException)t;
+        }
+        IOException e2 = new IOException(t.toString());
+        e2.initCause(t);
+        return e2;
+    }
+
+    void close() {
+        close(new IOException("Connection closed"));
+    }
+
+    /**
+     * Close the connection, failing any outstanding requests with the specified exception
+     */
+    void close(IOException e) {
+        synchronized(this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Iterator<Request> i = pending.values().iterator();i.hasNext();) {
+                i.next().promise.fail(e);
+            }
+            pending.clear();
+            output.clear();
+        }
+        connected.fail(e);
+        client.changed(this);
+    }
+
+    //-----------------------------------------------------------------------------------
+    // Called from the selector thread
+    //-----------------------------------------------------------------------------------
+
+    void connected() {
+        connected.set(null);
+    }
+
+    synchronized boolean hasOutput() {
+        return !output.isEmpty();
+    }
+
+    /**
+     * Write as much output as the socket will take,
+     * and return true if there's more to write
+     */
+    synchronized boolean write() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buf = output.getFirst();
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+                return true;
+            }
+            output.removeFirst();
+        }
+        return false;
+    }
+
+    /**
+     * Fail any requests whose deadline has passed
+     */
+    synchronized void expire(long now) {
+        for (Iterator<Request> i = pending.values().iterator();i.hasNext();) {
+            Request r = i.next();
+            if (now - r.deadline > 0) {
+                i.remove();
+                r.promise.fail(new SocketTimeoutException("No response to CSeq "+r.cseq));
+            }
+        }
+    }
+
+    /**
+     * Read what's available and complete the requests for any responses received
+     */
+    void read() throws IOException {
+        if (!input.hasRemaining()) {
+            if (input.capacity() >= MAXRESPONSE) {
+                throw new IOException("Response too large");
+            }
+            ByteBuffer t = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            t.put(input);
+            input = t;
+        }
+        if (channel.read(input) < 0) {
+            throw new EOFException("Connection closed by speaker");
+        }
+        input.flip();
+        Response response;
+        while ((response=parse()) != null) {
+            received(response);
+        }
+        input.compact();
+    }
+
+    /**
+     * Parse one response from the input buffer and return it, or
+     * return null if a complete response hasn't been received yet
+     */
+    private Response parse() throws IOException {
+        final byte[] buf = input.array();
+        final int start = input.position();
+        final int limit = input.limit();
+        int end = -1;
+        for (int i=start;i+3<limit;i++) {
+            if (buf[i]=='\r' && buf[i+1]=='\n' && buf[i+2]=='\r' && buf[i+3]=='\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        String[] lines = new String(buf, start, end - start, CHARSET).split("\r\n");
+        String key = null;
+        // Header names are case insensitive, and some speakers don't use the usual case
+        Map<String,String> map = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+        for (int j=1;j<lines.length;j++) {
+            String line = lines[j];
+            if (key != null && line.length() > 0 && Character.isWhitespace(line.charAt(0))) {
+                map.put(key, map.get(key)+line);
+            } else {
+                int i = line.indexOf(":");
+                if (i == -1) {
+                    throw new IOException("Request failed, bad header");
+                }
+                key = line.substring(0, i);
+                map.put(key, line.substring(i+1).trim());
+            }
+        }
+        int length = 0;
+        if (map.containsKey("Content-Length")) {
+            try {
+                length = Integer.parseInt(map.get("Content-Length"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length");
+            }
+        }
+        int contentstart = end + 4;
+        if (contentstart + length > limit) {
+            if (contentstart + length - start > MAXRESPONSE) {
+                throw new IOException("Response too large");
+            }
+            return null;
+        }
+        String content = length == 0 ? null : new String(buf, contentstart, length, CHARSET);
+        input.position(contentstart + length);
+        return new Response(lines[0], map, content);
+    }
+
+    private void received(Response response) {
+        Request r = null;
+        synchronized(this) {
+            String cseq = response.headers.get("CSeq");
+            if (cseq != null) {
+                try {
+                    r = pending.remove(Integer.valueOf(cseq.trim()));
+                } catch (NumberFormatException e) { }
+            } else if (!pending.isEmpty()) {
+                Iterator<Request> i = pending.values().iterator();
+                r = i.next();
+                i.remove();
+            }
+        }
+        if (r != null) {
+            r.promise.set(response);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.nixus.raop.speaker.airport;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Watches the RTSP session of every speaker. Sends each an OPTIONS request
+ * every {@link #KEEPALIVE} ms to keep the session alive, and when a session
+ * goes quiet or fails, rebuilds it on a thread of its own and has the
+ * speaker rejoin the stream at the current position. Neither the sender
+ * nor the other speakers wait for this: the sender just skips a speaker
+ * while it's not connected.
+ */
+class SessionMonitor implements Runnable {
+
+    private static final long INTERVAL = 1000, KEEPALIVE = 15000;   // ms
+    private static final int MAXATTEMPTS = 3;
+
+    private final Collection<AirtunesManager> managers;
+    private final Thread thread;
+    private volatile boolean cancelled;
+
+    SessionMonitor(Collection<AirtunesManager> managers) {
+        this.managers = managers;
+        this.thread = new Thread(this, "qTunes-airtunes-monitor");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    public void run() {
+        while (!cancelled) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<AirtunesManager> i = managers.iterator();i.hasNext();) {
+                AirtunesManager manager = i.next();
+                for (Iterator<AirtunesSpeaker> j = manager.getSpeakers().iterator();j.hasNext();) {
+                    AirtunesSpeaker speaker = j.next();
+                    try {
+                        if (!speaker.isActive()) {
+                            continue;
+                        } else if (!speaker.isConnected()) {
+                            if (speaker.startRejoin()) {
+                                rejoin(manager, speaker);
+                            }
+                        } else {
+                            speaker.keepalive(now, KEEPALIVE);
+                        }
+                    } catch (Exception e) {
+                        speaker.getContext().warn("Session monitor failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the session for the speaker in the background, trying
+     * {@link #MAXATTEMPTS} times before giving up on it
+     */
+    private void rejoin(final AirtunesManager manager, final AirtunesSpeaker speaker) {
+        new Thread("qTunes-airtunes-rejoin") {
+            public void run() {
+                IOException failure = null;
+                try {
+                    for (int attempt=0;attempt<MAXATTEMPTS && !cancelled;attempt++) {
+                        if (attempt > 0) {
+                            Thread.sleep(INTERVAL << attempt);
+                        }
+                        try {
+                            speaker.rejoin(manager.getRtpSeq(), manager.getRtpTime());
+                            speaker.getContext().debug("Rejoined speaker");
+                            return;
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    if (failure != null && speaker.isActive()) {
+                        speaker.fail(failure);
+                    }
+                } catch (InterruptedException e) {
+                } finally {
+                    speaker.endRejoin();
+                }
+            }
+        }.start();
+    }
+
+}
@@ -5,6 +5,7 @@ import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.nixus.raop.core.ServiceContext;
 import com.nixus.raop.player.Player;
@@ -33,6 +34,24 @@ public class SpeakerImpl implements Speaker {
     private InetAddress getHost() {
         return host;
     }
+
+    /**
+     * Return true if the speaker's "et" TXT record lists 0, meaning it will
+     * take an unencrypted stream, and the player hasn't asked us to encrypt
+     */
+    private boolean isCleartextSupported() {
+        String et = context.getProperty("et");
+        if (et == null || "true".equals(player.getContext().getProperty("encrypt"))) {
+            return false;
+        }
+        String[] types = et.split(",");
+        for (int i=0;i<types.length;i++) {
+            if (types[i].trim().equals("0")) {
+                return true;
+            }
+        }
+        return false;
+    }
     
     public Exception getError() {
         AirtunesSpeaker tempspeaker = speaker;
@@ -65,7 +84,18 @@ public class SpeakerImpl implements Speaker {
     }
 
     public int getDelay() {
-        return delay; 
+        return delay;
+    }
+
+    /**
+     * Return the "delay" property plus the latency of this speaker - the
+     * Audio-Latency it reported and half the round trip to it. The latency
+     * of the manager is the same for all its speakers, so isn't included.
+     */
+    public int getSampleDelay() {
+        AirtunesSpeaker tempspeaker = speaker;
+        int latency = tempspeaker == null ? 0 : tempspeaker.getNetworkLatency();
+        return (int)(delay * 44100l / 1000) + latency;
     }
 
     public int getBufferSize() {
@@ -108,12 +138,37 @@ public class SpeakerImpl implements Speaker {
         holdlen = 0;
     }
 
+    public void pause() {
+        if (!isOpen()) {
+            throw new IllegalStateException("Not open for "+context.getServiceName());
+        }
+        if (managerservice.isListening(this)) {
+            managerservice.getManager().pause();
+        }
+    }
+
+    public void resume() {
+        if (!isOpen()) {
+            throw new IllegalStateException("Not open for "+context.getServiceName());
+        }
+        if (managerservice.isListening(this)) {
+            managerservice.getManager().resume();
+        }
+    }
+
     public void drain() {
         if (!isOpen()) {
             throw new IllegalStateException("Not open for "+context.getServiceName());
         }
         if (managerservice.isListening(this)) {
-            managerservice.getManager().drain();
+            // Wait for the audio to play out, without holding the manager
+            try {
+                managerservice.getManager().drain().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                context.warn("Drain failed", e.getCause());
+            }
         }
         holdlen = 0;
     }
@@ -140,23 +195,30 @@ public class SpeakerImpl implements Speaker {
             throw new IllegalArgumentException("Wrong params");
         }
         if (managerservice == null) {
-            String playername = player.getContext().getServiceName();
-            managerservice = context.getService(AirtunesManagerService.class, "name='airportmanager."+playername+"'");
-            if (managerservice == null) {
-                Map<String,String> props = new HashMap<String,String>();
-                props.put("name", "airportmanager."+playername);
-                props.put("playername", playername);
-                ServiceContext newcontext = context.addService(new Class[] { AirtunesManagerService.class }, new AirtunesManagerService(), props, false);
-                newcontext.start();
-                managerservice = (AirtunesManagerService)newcontext.getService();
+            // Speakers of the same player may be opened in parallel
+            synchronized(AirtunesManagerService.class) {
+                String playername = player.getContext().getServiceName();
+                managerservice = context.getService(AirtunesManagerService.class, "name='airportmanager."+playername+"'");
+                if (managerservice == null) {
+                    Map<String,String> props = new HashMap<String,String>();
+                    props.put("name", "airportmanager."+playername);
+                    props.put("playername", playername);
+                    if (player.getContext().getProperty("compression") != null) {
+                        props.put("compression", player.getContext().getProperty("compression"));
+                    }
+                    if (player.getContext().getProperty("softgain") != null) {
+                        props.put("softgain", player.getContext().getProperty("softgain"));
+                    }
+                    ServiceContext newcontext = context.addService(new Class[] { AirtunesManagerService.class }, new AirtunesManagerService(), props, false);
+                    newcontext.start();
+                    managerservice = (AirtunesManagerService)newcontext.getService();
+                }
             }
         }
         this.bigEndian = bigEndian;
         holdlen = 0;
-        synchronized(managerservice.getManager()) {
-            speaker = managerservice.getManager().addSpeaker(getDisplayName(), getHost(), getPort(), null, context);
-            managerservice.add(this);
-        }
+        speaker = managerservice.getManager().addSpeaker(getDisplayName(), getHost(), getPort(), null, isCleartextSupported(), context);
+        managerservice.add(this);
     }
 
     public void setGain(float gain) {
@@ -210,6 +272,14 @@ public class SpeakerImpl implements Speaker {
         map.put("name", getDisplayName());
         map.put("volumeadjust", getVolumeAdjustment());
         map.put("hasgain", hasGain());
+        AirtunesSpeaker tempspeaker = speaker;
+        if (tempspeaker != null) {
+            map.put("resendrequests", tempspeaker.getResendRequestCount());
+            map.put("resends", tempspeaker.getResendCount());
+            map.put("drops", tempspeaker.getManager().getDropCount(tempspeaker));
+            map.put("sendfailures", tempspeaker.getManager().getFailureCount(tempspeaker));
+            map.put("timing", tempspeaker.getTiming().reportState());
+        }
         return map;
     }
 }
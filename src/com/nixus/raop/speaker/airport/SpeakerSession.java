@@ -0,0 +1,62 @@
+package com.nixus.raop.speaker.airport;
+
+import java.net.InetSocketAddress;
+
+/**
+ * An immutable snapshot of the state of a speaker's session and the
+ * addresses it was given in SETUP. A new one is published by the
+ * AirtunesSpeaker on every change, so the sender can read a consistent
+ * view without locking.
+ */
+final class SpeakerSession {
+
+    enum State {
+        /** Being set up, or being rebuilt by the SessionMonitor */
+        CONNECTING,
+        /** Recording - audio is sent */
+        RECORDING,
+        /** A FLUSH is in progress */
+        FLUSHING,
+        /** Paused - the session is kept, but no audio is sent until the next RECORD */
+        PAUSED,
+        /** Given up on */
+        FAILED,
+        /** Torn down */
+        CLOSED
+    }
+
+    static final SpeakerSession CLOSED = new SpeakerSession(State.CLOSED, null, null, null);
+
+    final State state;
+    final InetSocketAddress server, control, timing;
+
+    SpeakerSession(State state, InetSocketAddress server, InetSocketAddress control, InetSocketAddress timing) {
+        this.state = state;
+        this.server = server;
+        this.control = control;
+        this.timing = timing;
+    }
+
+    /**
+     * Return a copy of this session in the specified state. The addresses
+     * are dropped if the new state is FAILED or CLOSED
+     */
+    SpeakerSession withState(State state) {
+        if (state == State.FAILED || state == State.CLOSED) {
+            return new SpeakerSession(state, null, null, null);
+        }
+        return new SpeakerSession(state, server, control, timing);
+    }
+
+    /**
+     * Return true if audio should be sent to the speaker
+     */
+    boolean isRecording() {
+        return state == State.RECORDING && server != null;
+    }
+
+    public String toString() {
+        return state.toString();
+    }
+
+}
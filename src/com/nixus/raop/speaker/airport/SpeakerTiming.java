@@ -0,0 +1,117 @@
+package com.nixus.raop.speaker.airport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Round-trip and clock offset statistics for one speaker, measured by
+ * sending it our own timing requests and timing the replies. Many speakers
+ * never answer a sender's requests, so as a fallback the exchange is also
+ * closed from their side: a speaker's own timing request may carry the
+ * transmit time of our last reply to it and when it received that, as
+ * in NTP symmetric mode. Speakers that do neither leave the statistics
+ * invalid, and are given no allowance for the round trip. Smoothed the
+ * same way TCP smooths its round-trip estimate: 1/8 of each new sample for
+ * the mean, 1/4 for the mean deviation.
+ *
+ * Written by the timing thread only, read from anywhere.
+ */
+class SpeakerTiming {
+
+    private volatile long rtt, rttvar, offset, samples;
+    private volatile long requests;
+    private volatile long lastreply;        // transmit time of our last reply, NTP
+
+    /**
+     * Called when we send a timing request to the speaker
+     */
+    void requested() {
+        requests++;
+    }
+
+    /**
+     * Called when we reply to a timing request from the speaker
+     * @param t the transmit time written to the reply, by our clock
+     */
+    void replied(long t) {
+        lastreply = t;
+    }
+
+    /**
+     * Called when the speaker sends us a timing request. If it echoes the
+     * transmit time of our last reply, the reply and this request make a
+     * timing exchange of their own, so it's counted like one of ours.
+     * @param origin the transmit time of our reply, as echoed by the speaker
+     * @param received when the speaker received our reply, by its clock
+     * @param sent when the speaker sent the request, by its clock
+     * @param t when we received the request, by our clock
+     */
+    void peerRequested(long origin, long received, long sent, long t) {
+        if (origin != 0 && received != 0 && origin == lastreply) {
+            update(origin, received, sent, t);
+        }
+    }
+
+    /**
+     * Called with the four timestamps of a completed timing exchange
+     * @param t1 when we sent the request, by our clock
+     * @param t2 when the speaker received it, by its clock
+     * @param t3 when the speaker replied, by its clock
+     * @param t4 when we received the reply, by our clock
+     */
+    void update(long t1, long t2, long t3, long t4) {
+        long samplertt = NtpClock.toNanos((t4 - t1) - (t3 - t2));
+        long sampleoffset = (NtpClock.toNanos(t2 - t1) + NtpClock.toNanos(t3 - t4)) / 2;
+        if (samplertt < 0) {
+            return;
+        }
+        if (samples++ == 0) {
+            rtt = samplertt;
+            rttvar = samplertt / 2;
+            offset = sampleoffset;
+        } else {
+            rttvar += (Math.abs(samplertt - rtt) - rttvar) / 4;
+            rtt += (samplertt - rtt) / 8;
+            offset += (sampleoffset - offset) / 8;
+        }
+    }
+
+    /**
+     * Return true if at least one timing exchange has completed
+     */
+    boolean isValid() {
+        return samples > 0;
+    }
+
+    /**
+     * Return the smoothed round-trip time in nanoseconds
+     */
+    long getRoundTrip() {
+        return rtt;
+    }
+
+    /**
+     * Return the mean deviation of the round-trip time in nanoseconds
+     */
+    long getJitter() {
+        return rttvar;
+    }
+
+    /**
+     * Return the smoothed offset of the speaker's clock from ours in nanoseconds
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    Map<String,Object> reportState() {
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("requests", requests);
+        map.put("replies", samples);
+        map.put("rtt", rtt / 1000);
+        map.put("jitter", rttvar / 1000);
+        map.put("offset", offset / 1000);
+        return map;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.nixus.raop.speaker.airport;
+
+import javax.crypto.Cipher;
+
+/**
+ * How the audio stream to a group of speakers is encrypted, and how the
+ * speakers are told to decrypt it.
+ */
+interface StreamEncryption {
+
+    /**
+     * Return the Cipher to encrypt audio packets with, or null to
+     * send them in the clear
+     */
+    Cipher getCipher();
+
+    /**
+     * Return the SDP attribute lines to add to the ANNOUNCE, each
+     * terminated with CRLF, or an empty String if there are none
+     */
+    String getSDPAttributes();
+
+    /**
+     * Called when the stream is finished with
+     */
+    void close();
+
+}
@@ -0,0 +1,55 @@
+package com.nixus.raop.speaker.airport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * The sync packet for one speaker, preformatted so sending it only means
+ * filling in the three timestamps. Tells the speaker which RTP timestamp
+ * is playing at which NTP time, and the timestamp of the next packet.
+ *
+ * Used by the sender thread only.
+ */
+class SyncPacket {
+
+    private final byte[] data = new byte[20];
+    private final DatagramPacket packet = new DatagramPacket(data, data.length);
+    private InetSocketAddress address;
+
+    SyncPacket() {
+        data[0] = (byte)0x80;
+        data[1] = (byte)0xd4;
+        data[2] = (byte)0;
+        data[3] = (byte)0x07;
+    }
+
+    /**
+     * Send the sync packet
+     * @param first true if this is the first sync packet of the stream
+     * @param playing the RTP timestamp playing at <code>ntptime</code>
+     * @param ntptime the NTP time
+     * @param next the RTP timestamp of the next packet to be sent
+     */
+    void send(DatagramSocket socket, InetSocketAddress address, boolean first, int playing, long ntptime, int next) throws IOException {
+        if (address != this.address) {
+            packet.setSocketAddress(address);
+            this.address = address;
+        }
+        data[0] = (byte)(first ? 0x90 : 0x80);
+        writeInt(playing, data, 4);
+        writeInt((int)(ntptime>>>32), data, 8);
+        writeInt((int)ntptime, data, 12);
+        writeInt(next, data, 16);
+        socket.send(packet);
+    }
+
+    private static void writeInt(int val, byte[] buf, int off) {
+        buf[off+0] = (byte)(val>>24);
+        buf[off+1] = (byte)(val>>16);
+        buf[off+2] = (byte)(val>>8);
+        buf[off+3] = (byte)(val>>0);
+    }
+
+}